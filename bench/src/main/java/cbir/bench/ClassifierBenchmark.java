@@ -0,0 +1,76 @@
+package cbir.bench;
+
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Learning and classification of every IClassifier on the histograms of the
+ * training and test images.
+ */
+@State(Scope.Thread)
+@Fork(1)
+public class ClassifierBenchmark {
+
+	@Param({ "SVMClassifier", "SVMClassifier.INTERSECTION",
+			"FeatureMapSVMClassifier", "NaiveBayesClassifier", "DecisionTree",
+			"RandomForest", "StatisticClassifier" })
+	public String classifier;
+
+	@Param({ "100" })
+	public int K;
+
+	private Map<String, Vector<int[]>> trainingData;
+	private int[][] testHistograms;
+	private int classCount;
+
+	private Object learned;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void buildHistograms() throws Throwable {
+		Workload training = Workload.get("Training");
+		Object vocabulary = training.vocabulary(K);
+		trainingData = training.dataSet(vocabulary, K);
+		testHistograms = Workload.get("Test").histograms(vocabulary, K);
+		classCount = trainingData.size();
+
+		learned = Engine.newClassifier(classifier, classCount, K);
+		Engine.learn(learned, trainingData);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 2)
+	@Measurement(iterations = 5)
+	public Object learn() throws Throwable {
+		Object fresh = Engine.newClassifier(classifier, classCount, K);
+		Engine.learn(fresh, trainingData);
+		return fresh;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Warmup(iterations = 3, time = 2)
+	@Measurement(iterations = 5, time = 2)
+	public String classify() throws Throwable {
+		int[] histogram = testHistograms[next];
+		next = (next + 1) % testHistograms.length;
+		return Engine.classify(learned, histogram);
+	}
+}
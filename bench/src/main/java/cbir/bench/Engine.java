@@ -0,0 +1,177 @@
+package cbir.bench;
+
+import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import mpi.cbg.fly.Feature;
+import mpi.cbg.fly.FloatArray2D;
+
+/**
+ * Entry points of the engine for the benchmarks.
+ *
+ * The engine lives in the default package, which JMH does not accept for
+ * benchmarks and which cannot be imported from a named package. The entry points
+ * are therefore bound once to method handles with the engine types erased to
+ * Object. The handles are static final, so the JIT inlines them like direct calls.
+ */
+final class Engine {
+
+	private static final Class<?> CBIR = type("CbirWithSift");
+	private static final Class<?> CLASSIFIER = type("IClassifier");
+	private static final Class<?> VOCABULARY = type("ByteVocabulary");
+
+	static final MethodHandle IMAGE_TO_FLOAT_ARRAY_2D = method(CBIR,
+			"ImageToFloatArray2D", BufferedImage.class);
+	static final MethodHandle CALCULATE_SIFT = method(CBIR, "calculateSift",
+			BufferedImage.class);
+	static final MethodHandle CLUSTERING = method(CBIR,
+			"doClusteringVisualWords", Feature[].class, int.class, int.class,
+			int.class);
+	static final MethodHandle NEW_VOCABULARY = constructor(VOCABULARY,
+			List.class);
+	static final MethodHandle CLASSIFY_VISUAL_WORD = method(CBIR,
+			"classifyVisualWord", Feature.class, VOCABULARY);
+	static final MethodHandle HISTOGRAM = method(CBIR, "visualWordHistogram",
+			List.class, VOCABULARY, int.class);
+
+	static final MethodHandle LEARN = method(CLASSIFIER, "learn", Map.class);
+	static final MethodHandle CLASSIFY = method(CLASSIFIER, "classify",
+			int[].class);
+
+	private Engine() {
+	}
+
+	static FloatArray2D imageToFloatArray2D(BufferedImage image)
+			throws Throwable {
+		return (FloatArray2D) IMAGE_TO_FLOAT_ARRAY_2D.invokeExact(image);
+	}
+
+	@SuppressWarnings("unchecked")
+	static Vector<Feature> calculateSift(BufferedImage image) throws Throwable {
+		return (Vector<Feature>) CALCULATE_SIFT.invokeExact(image);
+	}
+
+	/**
+	 * @return the visual words, a List of VisualWord
+	 */
+	static List<?> clustering(Feature[] points, int K, int minCount,
+			int maxIterations) throws Throwable {
+		return (List<?>) CLUSTERING.invokeExact(points, K, minCount,
+				maxIterations);
+	}
+
+	/**
+	 * @return the ByteVocabulary of the visual words, as used for quantization
+	 */
+	static Object vocabulary(List<?> words) throws Throwable {
+		return NEW_VOCABULARY.invokeExact(words);
+	}
+
+	static int classifyVisualWord(Feature feature, Object vocabulary)
+			throws Throwable {
+		return (int) CLASSIFY_VISUAL_WORD.invokeExact(feature, vocabulary);
+	}
+
+	static int[] histogram(List<Feature> features, Object vocabulary, int K)
+			throws Throwable {
+		return (int[]) HISTOGRAM.invokeExact(features, vocabulary, K);
+	}
+
+	static void learn(Object classifier, Map<String, Vector<int[]>> dataSet)
+			throws Throwable {
+		LEARN.invokeExact(classifier, dataSet);
+	}
+
+	static String classify(Object classifier, int[] histogram) throws Throwable {
+		return (String) CLASSIFY.invokeExact(classifier, histogram);
+	}
+
+	/**
+	 * Creates a classifier for classCount classes and K visual words. The name is
+	 * the classifier class, optionally followed by a dot and the name of a
+	 * constant of its Kernel enum, e.g. SVMClassifier.INTERSECTION.
+	 */
+	static Object newClassifier(String name, int classCount, int K)
+			throws ReflectiveOperationException {
+		int dot = name.indexOf('.');
+		Class<?> type = type(dot < 0 ? name : name.substring(0, dot));
+
+		if (dot >= 0) {
+			Class<?> kernelType = type(type.getName() + "$Kernel");
+			Object kernel = kernelType.getMethod("valueOf", String.class).invoke(
+					null, name.substring(dot + 1));
+			return type.getConstructor(int.class, kernelType).newInstance(K,
+					kernel);
+		}
+		for (Constructor<?> constructor : type.getConstructors()) {
+			Class<?>[] parameters = constructor.getParameterTypes();
+			if (parameters.length == 2 && parameters[0] == int.class
+					&& parameters[1] == int.class) {
+				return constructor.newInstance(classCount, K);
+			}
+		}
+		return type.getConstructor(int.class).newInstance(K);
+	}
+
+	private static Class<?> type(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Engine class " + name
+					+ " not found", e);
+		}
+	}
+
+	/*
+	 * Binds a static or instance method, the receiver and the engine types in
+	 * the signature become Object.
+	 */
+	private static MethodHandle method(Class<?> owner, String name,
+			Class<?>... parameters) {
+		try {
+			Method method = owner.getDeclaredMethod(name, parameters);
+			method.setAccessible(true);
+			MethodHandle handle = MethodHandles.lookup().unreflect(method);
+			return handle.asType(erase(handle.type()));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Engine method " + owner.getName()
+					+ "." + name + " not found", e);
+		}
+	}
+
+	private static MethodHandle constructor(Class<?> owner,
+			Class<?>... parameters) {
+		try {
+			MethodHandle handle = MethodHandles.lookup().unreflectConstructor(
+					owner.getConstructor(parameters));
+			return handle.asType(erase(handle.type()));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Engine constructor of "
+					+ owner.getName() + " not found", e);
+		}
+	}
+
+	private static MethodType erase(MethodType type) {
+		for (int i = 0; i < type.parameterCount(); i++) {
+			if (isEngineType(type.parameterType(i))) {
+				type = type.changeParameterType(i, Object.class);
+			}
+		}
+		if (isEngineType(type.returnType())) {
+			type = type.changeReturnType(Object.class);
+		}
+		return type;
+	}
+
+	private static boolean isEngineType(Class<?> type) {
+		return !type.isPrimitive() && !type.isArray()
+				&& type.getName().indexOf('.') < 0;
+	}
+}
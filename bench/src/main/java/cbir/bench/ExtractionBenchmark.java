@@ -0,0 +1,58 @@
+package cbir.bench;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import mpi.cbg.fly.Feature;
+import mpi.cbg.fly.FloatArray2D;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Feature extraction of a single image: the grey value conversion and the SIFT
+ * feature calculation, each invocation on the next training image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractionBenchmark {
+
+	private List<BufferedImage> images;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void readImages() throws Throwable {
+		images = Workload.get("Training").images;
+	}
+
+	@Benchmark
+	public FloatArray2D imageToFloatArray2D() throws Throwable {
+		return Engine.imageToFloatArray2D(nextImage());
+	}
+
+	@Benchmark
+	public Vector<Feature> calculateSift() throws Throwable {
+		return Engine.calculateSift(nextImage());
+	}
+
+	private BufferedImage nextImage() {
+		BufferedImage image = images.get(next);
+		next = (next + 1) % images.size();
+		return image;
+	}
+}
@@ -0,0 +1,75 @@
+package cbir.bench;
+
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import mpi.cbg.fly.Feature;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The visual word stages at several vocabulary sizes: one relocation step of the
+ * clustering over all training features, the assignment of a single feature to
+ * its nearest visual word and the histogram of a whole image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VisualWordBenchmark {
+
+	@Param({ "50", "100", "200" })
+	public int K;
+
+	private Feature[] points;
+	private List<Vector<Feature>> imageFeatures;
+	private Object vocabulary;
+
+	private int nextFeature;
+	private int nextImage;
+
+	@Setup(Level.Trial)
+	public void buildVocabulary() throws Throwable {
+		Workload training = Workload.get("Training");
+		points = training.allFeatures();
+		imageFeatures = training.features;
+		vocabulary = training.vocabulary(K);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 2)
+	@Measurement(iterations = 5)
+	public List<?> clusteringIteration() throws Throwable {
+		return Engine.clustering(points, K, Workload.MIN_CLASS_SIZE, 1);
+	}
+
+	@Benchmark
+	public int classifyVisualWord() throws Throwable {
+		Feature feature = points[nextFeature];
+		nextFeature = (nextFeature + 1) % points.length;
+		return Engine.classifyVisualWord(feature, vocabulary);
+	}
+
+	@Benchmark
+	public int[] histogram() throws Throwable {
+		List<Feature> features = imageFeatures.get(nextImage);
+		nextImage = (nextImage + 1) % imageFeatures.size();
+		return Engine.histogram(features, vocabulary, K);
+	}
+}
@@ -0,0 +1,147 @@
+package cbir.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import javax.imageio.ImageIO;
+
+import mpi.cbg.fly.Feature;
+
+/**
+ * The sample images under Images/ and the data derived from them, shared by all
+ * benchmarks of a fork.
+ *
+ * The images are taken in file name order, the same number of images of each
+ * class, so every run of the benchmarks works on the same data. The directory
+ * and the number of images per class can be set with the system properties
+ * cbir.images (default ../Images) and cbir.imagesPerClass (default 10).
+ */
+final class Workload {
+
+	static final File IMAGES = new File(System.getProperty("cbir.images",
+			"../Images"));
+	static final int IMAGES_PER_CLASS = Integer.getInteger(
+			"cbir.imagesPerClass", 10);
+
+	// the minimum count of members in a visual word class, as in CbirWithSift
+	static final int MIN_CLASS_SIZE = 5;
+	// relocation steps of the clustering that builds the benchmark vocabularies
+	static final int VOCABULARY_ITERATIONS = 3;
+
+	private static final Map<String, Workload> SETS = new HashMap<String, Workload>();
+
+	final List<String> classNames = new ArrayList<String>();
+	final List<BufferedImage> images = new ArrayList<BufferedImage>();
+	final List<Vector<Feature>> features = new ArrayList<Vector<Feature>>();
+	// the class index of each image
+	final List<Integer> labels = new ArrayList<Integer>();
+
+	private final Map<Integer, Object> vocabularies = new HashMap<Integer, Object>();
+
+	private Workload() {
+	}
+
+	/**
+	 * @return the images of the Training or Test folder with their SIFT
+	 *         features, read on first use
+	 */
+	static synchronized Workload get(String folder) throws Throwable {
+		Workload workload = SETS.get(folder);
+		if (workload == null) {
+			workload = read(new File(IMAGES, folder));
+			SETS.put(folder, workload);
+		}
+		return workload;
+	}
+
+	private static Workload read(File folder) throws Throwable {
+		File[] files = folder.listFiles();
+		if (files == null) {
+			throw new IOException("No images in " + folder.getAbsolutePath()
+					+ ", set cbir.images to the Images directory");
+		}
+		Arrays.sort(files);
+
+		Map<String, Integer> perClass = new LinkedHashMap<String, Integer>();
+		Workload workload = new Workload();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.indexOf('_') < 0) {
+				continue;
+			}
+			String className = name.substring(0, name.indexOf('_'));
+			Integer count = perClass.get(className);
+			if (count == null) {
+				count = 0;
+				workload.classNames.add(className);
+			}
+			if (count >= IMAGES_PER_CLASS) {
+				continue;
+			}
+			perClass.put(className, count + 1);
+
+			BufferedImage image = ImageIO.read(file);
+			workload.images.add(image);
+			workload.features.add(Engine.calculateSift(image));
+			workload.labels.add(workload.classNames.indexOf(className));
+		}
+		return workload;
+	}
+
+	Feature[] allFeatures() {
+		List<Feature> all = new ArrayList<Feature>();
+		for (Vector<Feature> imageFeatures : features) {
+			all.addAll(imageFeatures);
+		}
+		return all.toArray(new Feature[all.size()]);
+	}
+
+	/**
+	 * @return the ByteVocabulary of K visual words clustered from the features of
+	 *         these images
+	 */
+	synchronized Object vocabulary(int K) throws Throwable {
+		Object vocabulary = vocabularies.get(K);
+		if (vocabulary == null) {
+			vocabulary = Engine.vocabulary(Engine.clustering(allFeatures(), K,
+					MIN_CLASS_SIZE, VOCABULARY_ITERATIONS));
+			vocabularies.put(K, vocabulary);
+		}
+		return vocabulary;
+	}
+
+	/**
+	 * @return the histograms of these images over the vocabulary, one per image
+	 */
+	int[][] histograms(Object vocabulary, int K) throws Throwable {
+		int[][] histograms = new int[features.size()][];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = Engine.histogram(features.get(i), vocabulary, K);
+		}
+		return histograms;
+	}
+
+	/**
+	 * @return the histograms of these images grouped by class, as learn expects
+	 */
+	Map<String, Vector<int[]>> dataSet(Object vocabulary, int K)
+			throws Throwable {
+		int[][] histograms = histograms(vocabulary, K);
+		Map<String, Vector<int[]>> dataSet = new LinkedHashMap<String, Vector<int[]>>();
+		for (String className : classNames) {
+			dataSet.put(className, new Vector<int[]>());
+		}
+		for (int i = 0; i < histograms.length; i++) {
+			dataSet.get(classNames.get(labels.get(i))).add(histograms[i]);
+		}
+		return dataSet;
+	}
+}
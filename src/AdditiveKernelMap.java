@@ -0,0 +1,146 @@
+
+/**
+ * Explicit approximate feature map for homogeneous additive kernels after
+ * Vedaldi and Zisserman ("Efficient Additive Kernels via Explicit Feature Maps").
+ *
+ * A kernel k(x,y) = sum_i k(x_i, y_i) on histograms is approximated by a dot
+ * product of mapped vectors. Each histogram bin is expanded into 2 * order + 1
+ * values, so a linear model on the mapped vectors behaves like a kernel SVM with
+ * the chi2 or intersection kernel, but costs a single dot product to evaluate.
+ *
+ * Histograms are L1 normalized before they are mapped.
+ */
+public class AdditiveKernelMap {
+
+	public enum Kernel {
+		CHI2, INTERSECTION;
+
+		/*
+		 * The spectrum kappa(lambda) of the kernel signature.
+		 */
+		double spectrum(double lambda) {
+			switch (this) {
+			case CHI2:
+				return 1 / Math.cosh(Math.PI * lambda);
+			case INTERSECTION:
+				return 2 / (Math.PI * (1 + 4 * lambda * lambda));
+			default:
+				throw new IllegalStateException("Unknown kernel " + this);
+			}
+		}
+	}
+
+	private final Kernel kernel;
+	private final int order;
+	private final double period;
+	private final int bins;
+
+	// sqrt of the sampled spectrum scaled by the sampling period
+	private final double[] weights;
+	private final double[] frequencies;
+
+	public AdditiveKernelMap(Kernel kernel, int order, double period, int bins) {
+		this.kernel = kernel;
+		this.order = order;
+		this.period = period;
+		this.bins = bins;
+		this.weights = new double[order + 1];
+		this.frequencies = new double[order + 1];
+
+		weights[0] = Math.sqrt(period * kernel.spectrum(0));
+		for (int j = 1; j <= order; j++) {
+			frequencies[j] = j * period;
+			weights[j] = Math.sqrt(2 * period * kernel.spectrum(j * period));
+		}
+	}
+
+	public Kernel getKernel() {
+		return kernel;
+	}
+
+	public int getOrder() {
+		return order;
+	}
+
+	public double getPeriod() {
+		return period;
+	}
+
+	public int getBins() {
+		return bins;
+	}
+
+	/**
+	 * @return the length of a mapped histogram
+	 */
+	public int dimension() {
+		return bins * (2 * order + 1);
+	}
+
+	/**
+	 * Maps a histogram into out, which must have at least dimension() entries.
+	 */
+	public void map(int[] histogram, double[] out) {
+		final double norm = l1Norm(histogram);
+		final int stride = 2 * order + 1;
+
+		for (int i = 0; i < bins; i++) {
+			final int offset = i * stride;
+			if (histogram[i] == 0) {
+				for (int j = 0; j < stride; j++) {
+					out[offset + j] = 0;
+				}
+				continue;
+			}
+
+			final double x = histogram[i] / norm;
+			final double sqrtX = Math.sqrt(x);
+			final double logX = Math.log(x);
+
+			out[offset] = sqrtX * weights[0];
+			for (int j = 1; j <= order; j++) {
+				final double phase = frequencies[j] * logX;
+				out[offset + 2 * j - 1] = sqrtX * weights[j] * Math.cos(phase);
+				out[offset + 2 * j] = sqrtX * weights[j] * Math.sin(phase);
+			}
+		}
+	}
+
+	/**
+	 * Computes w . map(histogram) without materializing the mapped vector.
+	 */
+	public double dot(double[] w, int[] histogram) {
+		final double norm = l1Norm(histogram);
+		final int stride = 2 * order + 1;
+
+		double sum = 0;
+		for (int i = 0; i < bins; i++) {
+			if (histogram[i] == 0) {
+				continue;
+			}
+
+			final int offset = i * stride;
+			final double x = histogram[i] / norm;
+			final double sqrtX = Math.sqrt(x);
+			final double logX = Math.log(x);
+
+			double bin = w[offset] * weights[0];
+			for (int j = 1; j <= order; j++) {
+				final double phase = frequencies[j] * logX;
+				bin += weights[j]
+						* (w[offset + 2 * j - 1] * Math.cos(phase) + w[offset + 2 * j]
+								* Math.sin(phase));
+			}
+			sum += sqrtX * bin;
+		}
+		return sum;
+	}
+
+	private double l1Norm(int[] histogram) {
+		long sum = 0;
+		for (int i = 0; i < bins; i++) {
+			sum += histogram[i];
+		}
+		return sum == 0 ? 1 : sum;
+	}
+}
@@ -0,0 +1,136 @@
+import java.util.List;
+
+import mpi.cbg.fly.Feature;
+
+/**
+ * Descriptors stored as unsigned bytes in one contiguous array, a quarter of the
+ * size of the float descriptors of the Features.
+ *
+ * All components are quantized with the same affine map code = (x - offset) *
+ * scale, rounded and clamped to 0..255, fitted to the range of the stored
+ * descriptors. The squared L2 distance of two codes is therefore scale^2 times
+ * the squared L2 distance of the descriptors, up to rounding, and is computed in
+ * integer arithmetic.
+ */
+public final class ByteDescriptors {
+
+	private final int dimension;
+	private final int count;
+	private final float offset;
+	private final float scale;
+	private final byte[] codes;
+
+	public ByteDescriptors(List<Feature> features) {
+		this.count = features.size();
+		this.dimension = features.get(0).descriptor.length;
+
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+		for (Feature feature : features) {
+			for (float value : feature.descriptor) {
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+		}
+		this.offset = min;
+		this.scale = max > min ? 255 / (max - min) : 1;
+
+		this.codes = new byte[count * dimension];
+		for (int i = 0; i < count; i++) {
+			encode(features.get(i).descriptor, codes, i * dimension);
+		}
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int dimension() {
+		return dimension;
+	}
+
+	/**
+	 * @return the factor between code and descriptor distances
+	 */
+	public float getScale() {
+		return scale;
+	}
+
+	/**
+	 * Quantizes a descriptor with the map of this store into out[offset ..
+	 * offset+dimension).
+	 */
+	public void encode(float[] descriptor, byte[] out, int outOffset) {
+		for (int j = 0; j < dimension; j++) {
+			int code = Math.round((descriptor[j] - offset) * scale);
+			out[outOffset + j] = (byte) Math.max(0, Math.min(255, code));
+		}
+	}
+
+	/**
+	 * @return the squared distance of the stored descriptors i and j
+	 */
+	public int distance(int i, int j) {
+		return distance(codes, i * dimension, j, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return the index in rows of the stored descriptor nearest to the code
+	 */
+	public int nearest(byte[] code, int codeOffset, int[] rows) {
+		int nearest = 0;
+		int minDistance = Integer.MAX_VALUE;
+		for (int i = 0; i < rows.length; i++) {
+			int distance = distance(code, codeOffset, rows[i], minDistance);
+			if (distance < minDistance) {
+				minDistance = distance;
+				nearest = i;
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * @return the stored descriptor nearest to the code
+	 */
+	public int nearest(byte[] code, int codeOffset) {
+		int nearest = 0;
+		int minDistance = Integer.MAX_VALUE;
+		for (int row = 0; row < count; row++) {
+			int distance = distance(code, codeOffset, row, minDistance);
+			if (distance < minDistance) {
+				minDistance = distance;
+				nearest = row;
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * @return the index in rows of the stored descriptor nearest to the stored
+	 *         descriptor i
+	 */
+	public int nearest(int i, int[] rows) {
+		return nearest(codes, i * dimension, rows);
+	}
+
+	/*
+	 * The squared distance of a code to the stored descriptor row, the sum stops
+	 * early once it reaches bound.
+	 */
+	private int distance(byte[] code, int codeOffset, int row, int bound) {
+		final int rowOffset = row * dimension;
+		int sum = 0;
+		for (int j = 0; j < dimension; j += 16) {
+			final int end = Math.min(dimension, j + 16);
+			for (int k = j; k < end; k++) {
+				final int diff = (code[codeOffset + k] & 0xff)
+						- (codes[rowOffset + k] & 0xff);
+				sum += diff * diff;
+			}
+			if (sum >= bound) {
+				return sum;
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,46 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import mpi.cbg.fly.Feature;
+
+/**
+ * The centroids of the visual words as ByteDescriptors, for quantizing features
+ * with integer distances. A descriptor is quantized with the byte map of the
+ * centroids and assigned to the nearest centroid code.
+ */
+public final class ByteVocabulary {
+
+	private final ByteDescriptors centroids;
+	private final int[] classIDs;
+
+	// per thread code of the descriptor being classified
+	private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[centroids.dimension()];
+		}
+	};
+
+	public ByteVocabulary(List<VisualWord> words) {
+		List<Feature> features = new ArrayList<Feature>(words.size());
+		classIDs = new int[words.size()];
+		for (VisualWord word : words) {
+			classIDs[features.size()] = word.classID;
+			features.add(word.centroied);
+		}
+		centroids = new ByteDescriptors(features);
+	}
+
+	public int size() {
+		return classIDs.length;
+	}
+
+	/**
+	 * @return the class ID of the visual word nearest to the descriptor
+	 */
+	public int classify(float[] descriptor) {
+		byte[] code = scratch.get();
+		centroids.encode(descriptor, code, 0);
+		return classIDs[centroids.nearest(code, 0)];
+	}
+}
@@ -20,20 +20,26 @@ import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Polygon;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
 import java.util.Vector;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
@@ -51,6 +57,14 @@ public class CbirWithSift extends JFrame {
 
 	// the extracted visual words - model for the VisualWordHistogram
 	List<VisualWord> bagofwords = new Vector<VisualWord>();
+	// the visual words as bytes for the quantization, null until learned
+	ByteVocabulary vocabulary;
+
+	// the projection of the descriptors, null if they are not reduced
+	PCA descriptorPCA;
+
+	// the results of query by image content, created by the first query
+	private ResultCache resultCache;
 
 	// how many visual words should be classified
 	private static int K = 100;
@@ -58,6 +72,12 @@ public class CbirWithSift extends JFrame {
 	// the minimum count of members in a "visual-word" class
 	private static int MIN_CLASS_SIZE = 5;
 
+	// cluster a sample of at most VOCABULARY_SAMPLE training features, taking at
+	// most VOCABULARY_FEATURES_PER_IMAGE of each image, 0 clusters all features;
+	// not used by the sharded clustering without PCA
+	private static final int VOCABULARY_SAMPLE = 50000;
+	private static final int VOCABULARY_FEATURES_PER_IMAGE = 200;
+
 	private static final boolean CHOOSE_IMAGES_RANDOMLY = true;
 	private static final String TRAINING_DIR = "Training";
 	private static final String TEST_DIR = "Test";
@@ -69,11 +89,107 @@ public class CbirWithSift extends JFrame {
 	// default = 4
 	private static int steps = 5;
 
+	// extract the descriptors on a grid with DENSE_STRIDE pixels spacing, once
+	// for each of the DENSE_CELL_SIZES, instead of at the DoG keypoints
+	private static final boolean DENSE_SIFT = false;
+	private static final int DENSE_STRIDE = 8;
+	private static final int[] DENSE_CELL_SIZES = { 4, 6, 8 };
+
+	// extract the DoG features of each image on several threads, which lowers
+	// the latency of a single large image but costs more work in total
+	private static final boolean PARALLEL_SIFT = false;
+
+	// keep at most MAX_FEATURES_PER_IMAGE features of largest scale per image,
+	// 0 keeps all
+	private static final int MAX_FEATURES_PER_IMAGE = 0;
+
 	// for testing: delay time for showing images in the GUI
 	private static int wait = 1;
 
 	private static volatile boolean clusterChanged = true;
 
+	// load the vocabulary and classifier saved by an earlier run instead of
+	// learning them, save them after learning if they do not exist yet
+	private static final boolean REUSE_MODEL = false;
+	private static final File VOCABULARY_FILE = new File("vocabulary.bin");
+	private static final File CLASSIFIER_FILE = new File("classifier.bin");
+	private static final File PCA_FILE = new File("pca.bin");
+
+	// project the SIFT descriptors to PCA_DIMENSION dimensions before clustering
+	// and quantization, 0 keeps all 128; the projection is fitted on at most
+	// PCA_SAMPLES training descriptors
+	private static final int PCA_DIMENSION = 0;
+	private static final int PCA_SAMPLES = 20000;
+
+	// cluster the vocabulary with mean k-means in CLUSTERING_WORKERS local
+	// worker JVMs, each holding one shard of the training descriptors, 0 uses
+	// the in-process clustering; without PCA all training descriptors are
+	// clustered, written to the shards while the images are read; stops after CLUSTERING_ITERATIONS or once no
+	// centroid moves farther than CLUSTERING_TOLERANCE
+	private static final int CLUSTERING_WORKERS = 0;
+	private static final int CLUSTERING_ITERATIONS = 100;
+	private static final double CLUSTERING_TOLERANCE = 1e-4;
+
+	// save the state of the vocabulary clustering to CHECKPOINT_FILE every
+	// CHECKPOINT_PERIOD iterations and resume from it after a restart, 0 = never
+	private static final int CHECKPOINT_PERIOD = 0;
+	private static final File CHECKPOINT_FILE = new File("clustering.checkpoint");
+
+	// for testing: compare the RBF SVM with the feature map SVMs on the test set
+	private static final boolean COMPARE_SVM_KERNELS = false;
+
+	// for testing: compare k-NN search on VLAD codes with the classifier on the
+	// test set, with VLAD_WORDS visual words reduced to VLAD_DIMENSION floats
+	private static final boolean COMPARE_VLAD = false;
+	private static final int VLAD_WORDS = 64;
+	private static final int VLAD_DIMENSION = 128;
+
+	// for testing: compare k-NN search on Hamming embedded features with the
+	// classifier on the test set, features match if their signatures differ in
+	// at most HAMMING_THRESHOLD of the 64 bits
+	private static final boolean COMPARE_HAMMING = false;
+	private static final int HAMMING_THRESHOLD = 20;
+
+	// for testing: list the near duplicates among the training images and of
+	// each test image, images are near duplicates if their histograms overlap
+	// by at least DUPLICATE_OVERLAP; candidates are found by MinHash with
+	// DUPLICATE_BANDS bands of DUPLICATE_ROWS hashes
+	private static final boolean FIND_DUPLICATES = false;
+	private static final double DUPLICATE_OVERLAP = 0.5;
+	private static final int DUPLICATE_BANDS = 25;
+	private static final int DUPLICATE_ROWS = 4;
+
+	// answer repeated queries of identical image files from a cache of at most
+	// RESULT_CACHE_BYTES of results, 0 = no cache
+	private static final long RESULT_CACHE_BYTES = 64L << 20;
+
+	// read an image folder from the shards PackedDataset packed into
+	// ./images/<folder>PACKED_SUFFIX if there are any, feature shards first
+	// unless they were packed with other extraction settings
+	private static final boolean READ_PACKED = true;
+	private static final String PACKED_SUFFIX = ".packed";
+
+	// for testing: classify the test files twice through query and print the
+	// latency of the uncached and the cached pass
+	private static final boolean COMPARE_RESULT_CACHE = false;
+
+	// print a snapshot of the Metrics every METRICS_PERIOD seconds, 0 = only at
+	// the end of the run
+	private static final int METRICS_PERIOD = 10;
+
+	// the stage latencies
+	private static final Metrics.Timer DECODE = Metrics.timer("decode");
+	private static final Metrics.Timer GRAYSCALE = Metrics.timer("grayscale");
+	private static final Metrics.Timer SIFT = Metrics.timer("sift");
+	private static final Metrics.Timer QUANTIZE = Metrics.timer("quantize");
+	private static final Metrics.Timer CLASSIFY = Metrics.timer("classify");
+	private static final Metrics.Timer CLUSTERING = Metrics.timer("clustering.iteration");
+	private static final Metrics.Timer LEARN_VOCABULARY = Metrics.timer("learn.vocabulary");
+	private static final Metrics.Timer LEARN_CLASSIFIER = Metrics.timer("learn.classifier");
+
+	private static final Metrics.Counter IMAGES = Metrics.counter("images");
+	private static final Metrics.Counter FEATURES = Metrics.counter("features");
+
 	/**
 	 * 
 	 * IMPLEMENT THIS METHOD
@@ -87,16 +203,57 @@ public class CbirWithSift extends JFrame {
 	 * @return the class ID (0..k) or null if quality is not good enough
 	 */
 	public Integer doClassifyVisualWord(Feature f) {
-		int classId = 0;
-		float minDistance = Float.MAX_VALUE;
-		for (VisualWord word : bagofwords) {
-			float newDistance = word.centroied.descriptorDistance(f);
-			if (newDistance < minDistance) {
-				minDistance = newDistance;
-				classId = word.classID;
+		if (vocabulary == null)
+			return null;
+		return classifyVisualWord(f, vocabulary);
+	}
+
+	/**
+	 * @return the class ID of the visual word nearest to the feature
+	 */
+	public static int classifyVisualWord(Feature f, ByteVocabulary words) {
+		return words.classify(f.descriptor);
+	}
+
+	/**
+	 * @return the VisualWordHistogram of the features of an image
+	 */
+	public static int[] visualWordHistogram(List<Feature> features,
+			ByteVocabulary words, int K) {
+		long start = System.nanoTime();
+		int[] histogram = new int[K];
+		for (Feature f : features)
+			histogram[classifyVisualWord(f, words)]++;
+		QUANTIZE.stop(start);
+		return histogram;
+	}
+
+	/**
+	 * Stores the visual word of each feature and the VisualWordHistogram of each
+	 * image in image.words and image.histogram, for the images in parallel.
+	 */
+	public static void quantize(List<IgsImage> images, final ByteVocabulary words,
+			final int K) {
+		final IgsImage[] array = images.toArray(new IgsImage[images.size()]);
+		ParallelBatch.run(array.length, new ParallelBatch.Range() {
+			@Override
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					long start = System.nanoTime();
+					IgsImage image = array[i];
+					int[] imageWords = new int[image.features.size()];
+					int[] histogram = new int[K];
+					for (int j = 0; j < imageWords.length; j++) {
+						imageWords[j] = classifyVisualWord(image.features.get(j),
+								words);
+						histogram[imageWords[j]]++;
+					}
+					image.words = imageWords;
+					image.histogram = histogram;
+					QUANTIZE.stop(start);
+				}
 			}
-		}
-		return classId;
+		});
 	}
 
 	/**
@@ -116,123 +273,286 @@ public class CbirWithSift extends JFrame {
 	 */
 	public static List<VisualWord> doClusteringVisualWords(
 			final Feature[] points, int K, int minCount) {
+		return doClusteringVisualWords(points, K, minCount, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Clusters like doClusteringVisualWords(points, K, minCount), but stops after
+	 * maxIterations relocation steps even if the clusters still change.
+	 */
+	public static List<VisualWord> doClusteringVisualWords(
+			final Feature[] points, int K, int minCount, int maxIterations) {
+		return doClusteringVisualWords(points, K, minCount, maxIterations, null);
+	}
+
+	/**
+	 * Clusters like doClusteringVisualWords(points, K, minCount, maxIterations)
+	 * and saves the state every CHECKPOINT_PERIOD iterations to checkpoint. If
+	 * checkpoint holds the state of an interrupted clustering of the same points
+	 * into K classes, the clustering resumes from it. The checkpoint is deleted
+	 * once the clustering is done.
+	 */
+	public static List<VisualWord> doClusteringVisualWords(
+			final Feature[] points, int K, int minCount, int maxIterations,
+			File checkpoint) {
 		System.out.println("Start clustering with: " + points.length
 				+ " pkt to " + K + " classes");
 
-		List<VisualWord> centroides = new LinkedList<>();
+		// the descriptors as bytes, the medoid of each cluster and the cluster
+		// of each point are indexes into them
+		final ByteDescriptors descriptors = new ByteDescriptors(
+				Arrays.asList(points));
+		int[] medoids = new int[K];
 		for (int i = 0; i < K; i++) {
-			centroides.add(new VisualWord(points[i], i));
+			medoids[i] = i;
 		}
+		final int[] assignment = new int[points.length];
+		int[][] members = new int[K][];
+		// the distortion of each cluster, in code units
+		final double[] distortions = new double[K];
 
 		int it = 0;
-		while (clusterChanged) {
+		long descriptorsId = 0;
+		if (checkpoint != null) {
+			descriptorsId = ModelIO.descriptorsId(points);
+			ClusteringCheckpoint resumed = resume(checkpoint, descriptorsId, K);
+			if (resumed != null) {
+				medoids = resumed.medoids;
+				it = resumed.iteration;
+				System.out.println("Resume clustering after iteration " + it
+						+ " with objective " + resumed.objective);
+			}
+		}
+
+		clusterChanged = true;
+		final int resumedIteration = it;
+		while (clusterChanged && it < maxIterations) {
 			clusterChanged = false;
+			long start = System.nanoTime();
+			int[] previous = medoids.clone();
+
+			assign(descriptors, medoids, assignment);
+			members = members(assignment, K);
+			ExecutorService executor = newPool("clustering.queue");
+			for (int cluster = 0; cluster < K; cluster++) {
+				executor.execute(new ClusterRunnable(descriptors, medoids,
+						distortions, cluster, members[cluster]));
+			}
+			awaitTermination(executor);
 
-			ExecutorService executor = Executors.newFixedThreadPool(Runtime
-					.getRuntime().availableProcessors());
+			CLUSTERING.stop(start);
+			it++;
 
-			for (VisualWord cluster : centroides) {
-				cluster.points.clear();
+			double objective = 0;
+			for (double distortion : distortions) {
+				objective += distortion;
+			}
+			objective /= descriptors.getScale();
+			int moved = 0;
+			double maxMovement = 0;
+			for (int cluster = 0; cluster < K; cluster++) {
+				if (medoids[cluster] != previous[cluster]) {
+					moved++;
+					maxMovement = Math.max(maxMovement, Math.sqrt(descriptors
+							.distance(medoids[cluster], previous[cluster])));
+				}
 			}
+			System.out.println(it + ": objective " + objective + ", " + moved
+					+ " medoids moved, at most "
+					+ maxMovement / descriptors.getScale());
 
-			for (Feature point : points) {
-				executor.execute(new RelocateCenterRunnable(point, centroides));
+			if (checkpoint != null && CHECKPOINT_PERIOD > 0
+					&& it % Math.max(1, CHECKPOINT_PERIOD) == 0) {
+				try {
+					new ClusteringCheckpoint(it, objective, medoids).save(
+							checkpoint, descriptorsId);
+				} catch (IOException e) {
+					System.err.println("Could not save the checkpoint: "
+							+ e.getMessage());
+				}
 			}
+		}
+		// a clustering resumed at maxIterations has not assigned the points yet
+		if (it == resumedIteration) {
+			assign(descriptors, medoids, assignment);
+			members = members(assignment, K);
+		}
+		if (checkpoint != null) {
+			checkpoint.delete();
+		}
 
-			executor.shutdown();
-			while (!executor.isTerminated()) { /* Busy waiting */
+		List<VisualWord> centroides = new LinkedList<>();
+		for (int cluster = 0; cluster < K; cluster++) {
+			VisualWord word = new VisualWord(points[medoids[cluster]], cluster);
+			for (int point : members[cluster]) {
+				word.points.add(points[point]);
 			}
+			centroides.add(word);
+		}
+		return centroides;
+	}
 
-			executor = Executors.newFixedThreadPool(Runtime.getRuntime()
-					.availableProcessors());
-			for (VisualWord cluster : centroides) {
-				executor.execute(new ClusterRunnable(cluster));
+	/**
+	 * Assigns each point to its nearest medoid.
+	 */
+	private static void assign(ByteDescriptors descriptors, int[] medoids,
+			int[] assignment) {
+		ExecutorService executor = newPool("clustering.queue");
+		for (int from = 0; from < assignment.length; from += RELOCATE_CHUNK) {
+			executor.execute(new RelocateCenterRunnable(descriptors, medoids,
+					assignment, from, Math.min(assignment.length, from
+							+ RELOCATE_CHUNK)));
+		}
+		awaitTermination(executor);
+	}
+
+	/**
+	 * @return the state saved in checkpoint, null if there is none for this
+	 *         clustering
+	 */
+	private static ClusteringCheckpoint resume(File checkpoint,
+			long descriptorsId, int K) {
+		if (!checkpoint.isFile()) {
+			return null;
+		}
+		try {
+			ClusteringCheckpoint state = ClusteringCheckpoint.load(checkpoint,
+					descriptorsId);
+			if (state.medoids.length == K) {
+				return state;
 			}
+			System.out.println("Ignoring checkpoint of " + state.medoids.length
+					+ " classes");
+		} catch (IOException e) {
+			System.out.println("Ignoring checkpoint: " + e.getMessage());
+		}
+		return null;
+	}
 
-			executor.shutdown();
-			while (!executor.isTerminated()) { /* Busy waiting */
+	// points per relocation task
+	private static final int RELOCATE_CHUNK = 256;
+
+	/**
+	 * @return a fixed pool of one thread per processor, the length of its work
+	 *         queue is reported as the gauge queueName
+	 */
+	private static ExecutorService newPool(String queueName) {
+		int p = Runtime.getRuntime().availableProcessors();
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(p, p, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+		Metrics.gauge(queueName, new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return pool.getQueue().size();
 			}
+		});
+		return pool;
+	}
 
-			System.out.println(++it);
+	private static void awaitTermination(ExecutorService executor) {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(1, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
 		}
+	}
 
-		return centroides;
+	/**
+	 * @return the points of each cluster in ascending order
+	 */
+	private static int[][] members(int[] assignment, int K) {
+		int[] counts = new int[K];
+		for (int cluster : assignment) {
+			counts[cluster]++;
+		}
+		int[][] members = new int[K][];
+		for (int cluster = 0; cluster < K; cluster++) {
+			members[cluster] = new int[counts[cluster]];
+			counts[cluster] = 0;
+		}
+		for (int point = 0; point < assignment.length; point++) {
+			int cluster = assignment[point];
+			members[cluster][counts[cluster]++] = point;
+		}
+		return members;
 	}
 
 	private static class RelocateCenterRunnable implements Runnable {
 
-		Feature point;
-		List<VisualWord> centroides;
-
-		public RelocateCenterRunnable(Feature point, List<VisualWord> centroides) {
-			this.point = point;
-			this.centroides = centroides;
+		ByteDescriptors descriptors;
+		int[] medoids;
+		int[] assignment;
+		int from, to;
+
+		public RelocateCenterRunnable(ByteDescriptors descriptors,
+				int[] medoids, int[] assignment, int from, int to) {
+			this.descriptors = descriptors;
+			this.medoids = medoids;
+			this.assignment = assignment;
+			this.from = from;
+			this.to = to;
 		}
 
 		@Override
 		public void run() {
-			VisualWord cluster = getNearestCluster(point, centroides);
-			cluster.points.add(point);
+			for (int point = from; point < to; point++) {
+				assignment[point] = descriptors.nearest(point, medoids);
+			}
 		}
 	}
 
 	private static class ClusterRunnable implements Runnable {
 
-		VisualWord cluster;
-
-		public ClusterRunnable(VisualWord cluster) {
+		ByteDescriptors descriptors;
+		int[] medoids;
+		double[] distortions;
+		int cluster;
+		int[] points;
+
+		public ClusterRunnable(ByteDescriptors descriptors, int[] medoids,
+				double[] distortions, int cluster, int[] points) {
+			this.descriptors = descriptors;
+			this.medoids = medoids;
+			this.distortions = distortions;
 			this.cluster = cluster;
+			this.points = points;
 		}
 
 		@Override
 		public void run() {
-			float distorsion = calcDistorsion(cluster);
+			double distorsion = calcDistorsion(medoids[cluster],
+					Double.MAX_VALUE);
 
-			for (Feature point : cluster.points) {
-				Feature oldCenter = cluster.centroied;
-				cluster.centroied = point;
-
-				float newDistorsion = calcDistorsion(cluster);
+			for (int point : points) {
+				double newDistorsion = calcDistorsion(point, distorsion);
 
 				if (newDistorsion < distorsion) {
 					clusterChanged = true;
 					distorsion = newDistorsion;
-				} else {
-					cluster.centroied = oldCenter;
+					medoids[cluster] = point;
 				}
 			}
+			distortions[cluster] = distorsion;
 		}
 
-	}
-
-	private static VisualWord getNearestCluster(Feature point,
-			List<VisualWord> centroides) {
-		VisualWord result = null;
-		float minDistance = Float.MAX_VALUE;
+		/*
+		 * The summed distance of the points to the center, the sum stops early
+		 * once it reaches bound.
+		 */
+		private double calcDistorsion(int center, double bound) {
+			double sum = 0;
 
-		for (VisualWord cluster : centroides) {
-			float distance = getDistance(point, cluster.centroied);
-			if (distance < minDistance) {
-				minDistance = distance;
-				result = cluster;
+			for (int point : points) {
+				sum += Math.sqrt(descriptors.distance(point, center));
+				if (sum >= bound) {
+					break;
+				}
 			}
-		}
 
-		return result;
-	}
-
-	private static float getDistance(Feature from, Feature to) {
-		return from.descriptorDistance(to);
-	}
-
-	private static float calcDistorsion(VisualWord cluster) {
-		float sum = 0;
-
-		for (Feature point : cluster.points) {
-			sum += Math.abs(getDistance(point, cluster.centroied));
+			return sum;
 		}
-
-		return sum;
 	}
 
 	/* Do not change anything from here */
@@ -258,79 +578,139 @@ public class CbirWithSift extends JFrame {
 			@Override
 			public void run() {
 				try {
+					if (METRICS_PERIOD > 0)
+						Metrics.startReporting(METRICS_PERIOD, System.out);
 
-					setTitle("Learning: readData");
-					LinkedList<IgsImage> trainingImages = readImages(
-							TRAINING_DIR, readImages);
-
-					setTitle("Learning: VisualWord by Clustering");
-
-					Vector<Feature> allLearnFeatchers = new Vector<Feature>();
-					for (IgsImage i : trainingImages)
-						allLearnFeatchers.addAll(i.features);
-
-					long startTimeVW = System.currentTimeMillis();
-					// calculate the visual words with k-means
-					bagofwords = doClusteringVisualWords(
-							allLearnFeatchers.toArray(new Feature[0]), K,
-							MIN_CLASS_SIZE);
-					long endTimeVW = System.currentTimeMillis();
-
-					setTitle("Show: visualWords in TraningsData");
+					IClassifier classifier = new SVMClassifier(K);
 					Map<String, Vector<int[]>> imageContentTrainingData = new HashMap<String, Vector<int[]>>();
+					LinkedList<IgsImage> trainingImages = null;
+
+					if (REUSE_MODEL && VOCABULARY_FILE.exists()
+							&& CLASSIFIER_FILE.exists()
+							&& (PCA_DIMENSION == 0 || PCA_FILE.exists())) {
+						setTitle("Learning: load model");
+						bagofwords = ModelIO.loadVocabulary(VOCABULARY_FILE);
+						vocabulary = new ByteVocabulary(bagofwords);
+						long vocabularyId = ModelIO.vocabularyId(bagofwords);
+						ModelIO.load(classifier, CLASSIFIER_FILE, vocabularyId);
+						if (PCA_DIMENSION > 0)
+							descriptorPCA = ModelIO.loadPCA(PCA_FILE, vocabularyId);
+						int dimension = descriptorPCA == null ? fdsize * fdsize
+								* fdbins : descriptorPCA.outputDimension();
+						if (bagofwords.get(0).centroied.descriptor.length != dimension)
+							throw new IOException("The saved vocabulary does not "
+									+ "match descriptors of dimension " + dimension);
+						System.out.println("Loaded " + bagofwords.size()
+								+ " Visual Words and the classifier.");
+					} else {
+						setTitle("Learning: readData");
+						DescriptorSampler sampler = null;
+						ShardWriter shards = null;
+						FeatureSink sink = null;
+						if (CLUSTERING_WORKERS > 0 && PCA_DIMENSION == 0)
+							sink = shards = newShards(K);
+						else if (VOCABULARY_SAMPLE > 0)
+							sink = sampler = new DescriptorSampler(
+									VOCABULARY_FEATURES_PER_IMAGE,
+									VOCABULARY_SAMPLE, 4711);
+						try {
+							trainingImages = readImages(TRAINING_DIR,
+									readImages, sink);
+						} catch (IOException | InterruptedException
+								| RuntimeException e) {
+							if (shards != null)
+								deleteShards(shards);
+							throw e;
+						}
 
-					// create the VisiualWordHistograms for each training image
-					for (IgsImage i : trainingImages) {
-						if (!imageContentTrainingData.containsKey(i.className))
-							imageContentTrainingData.put(i.className,
-									new Vector<int[]>());
-						int[] ImageVisualWordHistogram = new int[K];
-
-						for (Feature f : i.features) {
-							Integer wordClass = doClassifyVisualWord(f);
-							if (wordClass != null)
-								ImageVisualWordHistogram[wordClass.intValue()]++;
+						setTitle("Learning: VisualWord by Clustering");
+
+						Vector<Feature> allLearnFeatchers = new Vector<Feature>();
+						if (sampler != null) {
+							Collections.addAll(allLearnFeatchers, sampler.sample());
+							System.out.println("Sampled " + allLearnFeatchers.size()
+									+ " of " + sampler.getOffered()
+									+ " capped training features");
+						} else if (shards == null) {
+							for (IgsImage i : trainingImages)
+								allLearnFeatchers.addAll(i.features);
 						}
 
-						imageContentTrainingData.get(i.className).add(
-								ImageVisualWordHistogram);
+						if (PCA_DIMENSION > 0) {
+							descriptorPCA = fitDescriptorPCA(allLearnFeatchers);
+							projectDescriptors(trainingImages, descriptorPCA);
+						}
 
-						cur_image = i;
-						repaint();
-						Thread.sleep(wait);
-					}
+						long start = System.nanoTime();
+						// calculate the visual words with k-means
+						if (shards != null)
+							bagofwords = doShardedClustering(shards, K);
+						else if (CLUSTERING_WORKERS > 0)
+							bagofwords = doShardedClustering(allLearnFeatchers, K);
+						else
+							bagofwords = doClusteringVisualWords(
+									allLearnFeatchers.toArray(new Feature[0]), K,
+									MIN_CLASS_SIZE, Integer.MAX_VALUE,
+									CHECKPOINT_PERIOD > 0 ? CHECKPOINT_FILE
+											: null);
+						vocabulary = new ByteVocabulary(bagofwords);
+						LEARN_VOCABULARY.stop(start);
+
+						setTitle("Show: visualWords in TraningsData");
+
+						// create the VisiualWordHistograms for each training image
+						quantize(trainingImages, vocabulary, K);
+						for (IgsImage i : trainingImages) {
+							if (!imageContentTrainingData.containsKey(i.className))
+								imageContentTrainingData.put(i.className,
+										new Vector<int[]>());
+							imageContentTrainingData.get(i.className).add(
+									i.histogram);
+
+							cur_image = i;
+							repaint();
+							Thread.sleep(wait);
+						}
 
-					long startTimeDM = System.currentTimeMillis();
-					setTitle("Learning: decisionModel");
+						start = System.nanoTime();
+						setTitle("Learning: decisionModel");
 
-					IClassifier classifier = new SVMClassifier(K);
-					classifier.learn(imageContentTrainingData);
-					long endTimeDM = System.currentTimeMillis();
+						classifier.learn(imageContentTrainingData);
+						LEARN_CLASSIFIER.stop(start);
+
+						if (REUSE_MODEL) {
+							long vocabularyId = ModelIO.vocabularyId(bagofwords);
+							ModelIO.saveVocabulary(bagofwords, VOCABULARY_FILE);
+							ModelIO.save(classifier, CLASSIFIER_FILE, vocabularyId);
+							if (descriptorPCA != null)
+								ModelIO.savePCA(descriptorPCA, PCA_FILE,
+										vocabularyId);
+						}
+					}
 
 					setTitle("Testing: readData");
 					LinkedList<IgsImage> testImages = readImages(TEST_DIR,
 							readImages);
-
-					long startTime = System.currentTimeMillis();
+					if (descriptorPCA != null)
+						projectDescriptors(testImages, descriptorPCA);
 
 					Map<String, Integer> classStat = new HashMap<String, Integer>();
+					List<int[]> testHistograms = new ArrayList<int[]>();
 					int total = testImages.size();
 					int success = 0;
 					setTitle("Verify: test data");
 
 					// create the VisiualWordHistograms for each test image and
 					// classify it
+					quantize(testImages, vocabulary, K);
 					for (IgsImage i : testImages) {
-						int[] ImageVisualWordHistogram = new int[K];
-
-						for (Feature f : i.features) {
-							Integer wordClass = doClassifyVisualWord(f);
-							if (wordClass != null)
-								ImageVisualWordHistogram[wordClass.intValue()]++;
-						}
+						int[] ImageVisualWordHistogram = i.histogram;
 
+						testHistograms.add(ImageVisualWordHistogram);
+						long start = System.nanoTime();
 						i.classifiedName = classifier
 								.classify(ImageVisualWordHistogram);
+						CLASSIFY.stop(start);
 						if (classStat.containsKey(i.classifiedName)) {
 							classStat.put(i.classifiedName,
 									classStat.get(i.classifiedName) + 1);
@@ -346,15 +726,11 @@ public class CbirWithSift extends JFrame {
 						Thread.sleep(wait);
 					}
 
-					long endTime = System.currentTimeMillis();
-
+					Metrics.stopReporting();
 					System.out.println("Verified "
 							+ (success / (double) testImages.size()) * 100
-							+ "% in " + (endTime - startTime) + "ms");
-					System.out.println("Learned " + K + " Visual Words in: "
-							+ (endTimeVW - startTimeVW) + "ms!");
-					System.out.println("Learned the image classification in: "
-							+ (endTimeDM - startTimeDM) + "ms");
+							+ "% with " + K + " Visual Words");
+					System.out.print(Metrics.snapshot());
 
 					System.out.println();
 					for (Entry<String, Integer> e : classStat.entrySet()) {
@@ -362,6 +738,23 @@ public class CbirWithSift extends JFrame {
 								/ ((double) total) + "% as " + e.getKey() + ".");
 					}
 
+					if (COMPARE_SVM_KERNELS && !imageContentTrainingData.isEmpty()) {
+						List<String> testClasses = new ArrayList<String>();
+						for (IgsImage i : testImages)
+							testClasses.add(i.className);
+						compareSVMKernels(imageContentTrainingData,
+								testHistograms, testClasses);
+					}
+
+					if (COMPARE_VLAD && trainingImages != null)
+						compareVlad(trainingImages, testImages);
+					if (COMPARE_HAMMING && trainingImages != null)
+						compareHamming(trainingImages, testImages);
+					if (FIND_DUPLICATES)
+						findDuplicates(trainingImages, testImages);
+					if (COMPARE_RESULT_CACHE)
+						compareResultCache(testImages, classifier);
+
 				} catch (Exception _e) {
 					_e.printStackTrace();
 				}
@@ -371,6 +764,356 @@ public class CbirWithSift extends JFrame {
 		t.start();
 	}
 
+	/**
+	 * Trains the kernel SVMs and the feature map SVMs on the same training histograms
+	 * and prints the accuracy and the mean classification latency of each on the
+	 * test histograms.
+	 */
+	static void compareSVMKernels(Map<String, Vector<int[]>> trainingData,
+			List<int[]> testHistograms, List<String> testClasses) {
+		Map<String, IClassifier> classifiers = new LinkedHashMap<String, IClassifier>();
+		classifiers.put("RBF", new SVMClassifier(K));
+		classifiers.put("intersection", new SVMClassifier(K,
+				SVMClassifier.Kernel.INTERSECTION));
+		classifiers.put("chi2 map", new FeatureMapSVMClassifier(
+				new AdditiveKernelMap(AdditiveKernelMap.Kernel.CHI2, 2, 0.5, K)));
+		classifiers.put("intersection map", new FeatureMapSVMClassifier(
+				new AdditiveKernelMap(AdditiveKernelMap.Kernel.INTERSECTION, 2,
+						0.5, K)));
+
+		for (Entry<String, IClassifier> e : classifiers.entrySet()) {
+			IClassifier classifier = e.getValue();
+			classifier.learn(trainingData);
+
+			// warm up before timing
+			for (int[] histogram : testHistograms)
+				classifier.classify(histogram);
+
+			int success = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < testHistograms.size(); i++) {
+				if (classifier.classify(testHistograms.get(i)).equals(
+						testClasses.get(i)))
+					success++;
+			}
+			long elapsed = System.nanoTime() - start;
+
+			String size = classifier instanceof SVMClassifier ? ((SVMClassifier) classifier)
+					.getSupportVectorCount() + " support vectors"
+					: ((FeatureMapSVMClassifier) classifier).getWeightCount()
+							+ " weights";
+			System.out.println(e.getKey() + ": "
+					+ (100.0 * success / testHistograms.size()) + "% in "
+					+ (elapsed / 1000 / Math.max(1, testHistograms.size()))
+					+ "us per image, " + size + " for " + K + " words");
+		}
+	}
+
+	/**
+	 * Clusters the features with ShardedKMeans, written to CLUSTERING_WORKERS
+	 * temporary shards.
+	 */
+	static List<VisualWord> doShardedClustering(List<Feature> features, int K)
+			throws IOException {
+		ShardWriter writer = newShards(K);
+		try {
+			// the list is sampled for the seeds like the features of one image
+			writer.offer("features", features);
+		} catch (RuntimeException e) {
+			deleteShards(writer);
+			throw e;
+		}
+		return doShardedClustering(writer, K);
+	}
+
+	/**
+	 * Clusters the descriptors written to the shards with ShardedKMeans from
+	 * the seeds of the writer, closes the writer and deletes the shards.
+	 */
+	static List<VisualWord> doShardedClustering(ShardWriter writer, int K)
+			throws IOException {
+		try {
+			writer.close();
+			return ShardedKMeans.cluster(writer.getFiles(), K,
+					writer.getSeeds(), CLUSTERING_ITERATIONS,
+					CLUSTERING_TOLERANCE);
+		} finally {
+			deleteShards(writer);
+		}
+	}
+
+	/**
+	 * Closes the writer, ignoring its failures, and deletes the shards.
+	 */
+	static void deleteShards(ShardWriter writer) {
+		try {
+			writer.close();
+		} catch (IOException e) {
+			// the shards are deleted anyway
+		}
+		for (File file : writer.getFiles())
+			file.delete();
+		writer.getDirectory().delete();
+	}
+
+	/**
+	 * @return a writer of CLUSTERING_WORKERS temporary shards, which keeps K
+	 *         seeds
+	 */
+	static ShardWriter newShards(int K) throws IOException {
+		File directory = File.createTempFile("shards", "");
+		if (!directory.delete())
+			throw new IOException("Cannot create " + directory);
+		return new ShardWriter(directory, CLUSTERING_WORKERS, K);
+	}
+
+	/**
+	 * Fits the PCA_DIMENSION projection on a random sample of PCA_SAMPLES
+	 * descriptors.
+	 */
+	static PCA fitDescriptorPCA(List<Feature> features) {
+		List<Feature> sample = new ArrayList<Feature>(features);
+		Collections.shuffle(sample, new Random(4711));
+		sample = sample.subList(0, Math.min(PCA_SAMPLES, sample.size()));
+
+		float[][] descriptors = new float[sample.size()][];
+		for (int i = 0; i < descriptors.length; i++)
+			descriptors[i] = sample.get(i).descriptor;
+
+		PCA pca = PCA.fit(descriptors, PCA_DIMENSION);
+		System.out.println("PCA to " + pca.outputDimension()
+				+ " dimensions keeps " + 100 * pca.getRetainedVariance()
+				+ "% of the descriptor variance");
+		return pca;
+	}
+
+	/**
+	 * Replaces the descriptors of the features of the images by their
+	 * projections.
+	 */
+	static void projectDescriptors(List<IgsImage> images, PCA pca) {
+		for (IgsImage i : images)
+			for (Feature f : i.features)
+				f.descriptor = pca.project(f.descriptor);
+	}
+
+	/**
+	 * Encodes the training and test images as VLAD codes and prints the accuracy
+	 * and the mean search latency of a 5-NN vote over the training codes.
+	 */
+	static void compareVlad(List<IgsImage> trainingImages,
+			List<IgsImage> testImages) {
+		Vector<Feature> allFeatures = new Vector<Feature>();
+		List<Vector<Feature>> trainingFeatures = new ArrayList<Vector<Feature>>();
+		for (IgsImage i : trainingImages) {
+			allFeatures.addAll(i.features);
+			trainingFeatures.add(i.features);
+		}
+
+		VladEncoder encoder = new VladEncoder(doClusteringVisualWords(
+				allFeatures.toArray(new Feature[0]), VLAD_WORDS, MIN_CLASS_SIZE));
+		encoder.fitPCA(trainingFeatures, VLAD_DIMENSION);
+
+		VladIndex index = new VladIndex(encoder.dimension());
+		for (IgsImage i : trainingImages)
+			index.add(encoder.encode(i.features), i.className);
+
+		List<float[]> queries = new ArrayList<float[]>();
+		for (IgsImage i : testImages)
+			queries.add(encoder.encode(i.features));
+
+		int success = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < queries.size(); i++) {
+			if (testImages.get(i).className.equals(index.classify(queries.get(i), 5)))
+				success++;
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("VLAD " + VLAD_WORDS + " words to "
+				+ encoder.dimension() + " floats ("
+				+ (100 * encoder.getPCA().getRetainedVariance())
+				+ "% variance): " + (100.0 * success / queries.size())
+				+ "% in " + (elapsed / 1000 / Math.max(1, queries.size()))
+				+ "us per image");
+	}
+
+	/**
+	 * Embeds the features of the training and test images on the visual words
+	 * and prints the accuracy and the mean search latency of a 5-NN vote over the
+	 * training images.
+	 */
+	void compareHamming(List<IgsImage> trainingImages, List<IgsImage> testImages) {
+		Vector<Feature> allFeatures = new Vector<Feature>();
+		for (IgsImage i : trainingImages)
+			allFeatures.addAll(i.features);
+		Feature[] features = allFeatures.toArray(new Feature[0]);
+		int[] words = new int[features.length];
+		int offset = 0;
+		for (IgsImage i : trainingImages) {
+			System.arraycopy(i.words, 0, words, offset, i.words.length);
+			offset += i.words.length;
+		}
+
+		HammingEmbedding embedding = HammingEmbedding.learn(features, words,
+				bagofwords.size(), 4711);
+
+		HammingIndex index = new HammingIndex(bagofwords.size(),
+				HAMMING_THRESHOLD);
+		for (IgsImage i : trainingImages) {
+			embed(i, vocabulary, embedding);
+			index.add(i.words, i.signatures, i.className);
+		}
+		for (IgsImage i : testImages)
+			embed(i, vocabulary, embedding);
+
+		int success = 0;
+		long start = System.nanoTime();
+		for (IgsImage i : testImages) {
+			if (i.className.equals(index.classify(i.words, i.signatures, 5)))
+				success++;
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("Hamming embedding on " + bagofwords.size()
+				+ " words: " + (100.0 * success / testImages.size()) + "% in "
+				+ (elapsed / 1000 / Math.max(1, testImages.size()))
+				+ "us per image");
+	}
+
+	/**
+	 * Lists the near duplicates among the training images, if they were read,
+	 * then checks each test image against all images before it, as on ingest.
+	 */
+	void findDuplicates(List<IgsImage> trainingImages, List<IgsImage> testImages) {
+		List<IgsImage> images = new ArrayList<IgsImage>();
+		if (trainingImages != null)
+			images.addAll(trainingImages);
+		images.addAll(testImages);
+
+		DuplicateDetector detector = new DuplicateDetector(K, DUPLICATE_BANDS,
+				DUPLICATE_ROWS, DUPLICATE_OVERLAP, 4711);
+		int duplicates = 0;
+		long start = System.nanoTime();
+		for (IgsImage i : images) {
+			for (int d : detector.check(i.fileName, i.histogram)) {
+				System.out.println(i.fileName + " is a near duplicate of "
+						+ detector.getName(d));
+				duplicates++;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(duplicates + " near duplicates among "
+				+ images.size() + " images in "
+				+ (elapsed / 1000 / Math.max(1, images.size()))
+				+ "us per image");
+	}
+
+	/**
+	 * Classifies an image file like a test image. The result is cached under the
+	 * content of the file and the vocabulary and model, so a repeated file costs
+	 * a hash and a lookup.
+	 * 
+	 * @param modelId
+	 *            the identity of the classifier, see ModelIO.modelId
+	 * @return the histogram and the class of the image, a copy of the cached
+	 *         result
+	 */
+	ResultCache.Result query(File file, IClassifier classifier,
+			long vocabularyId, long modelId) throws IOException {
+		byte[] content = Files.readAllBytes(file.toPath());
+		ResultCache cache = resultCache();
+		ResultCache.Key key = null;
+		if (cache != null) {
+			key = ResultCache.key(content, vocabularyId, modelId);
+			ResultCache.Result result = cache.get(key);
+			if (result != null)
+				return result.copy();
+		}
+
+		long start = System.nanoTime();
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(content));
+		DECODE.stop(start);
+		if (image == null)
+			throw new IOException("Not an image: " + file);
+		Vector<Feature> features = calculateSift(image);
+		if (descriptorPCA != null)
+			for (Feature f : features)
+				f.descriptor = descriptorPCA.project(f.descriptor);
+		int[] histogram = visualWordHistogram(features, vocabulary, K);
+		start = System.nanoTime();
+		String className = classifier.classify(histogram);
+		CLASSIFY.stop(start);
+
+		ResultCache.Result result = new ResultCache.Result(histogram, className);
+		if (cache != null)
+			cache.put(key, result.copy());
+		return result;
+	}
+
+	/**
+	 * @return the result cache, null if RESULT_CACHE_BYTES is 0
+	 */
+	private synchronized ResultCache resultCache() {
+		if (resultCache == null && RESULT_CACHE_BYTES > 0)
+			resultCache = new ResultCache(RESULT_CACHE_BYTES);
+		return resultCache;
+	}
+
+	/**
+	 * Queries the test files twice and prints the accuracy and the mean latency
+	 * of each pass, the second is answered from the result cache.
+	 */
+	void compareResultCache(List<IgsImage> testImages, IClassifier classifier)
+			throws IOException {
+		long vocabularyId = ModelIO.vocabularyId(bagofwords);
+		long modelId = ModelIO.modelId(classifier, vocabularyId);
+		File folder = new File("./images/" + TEST_DIR);
+
+		for (int pass = 1; pass <= 2; pass++) {
+			int success = 0;
+			long start = System.nanoTime();
+			for (IgsImage i : testImages) {
+				ResultCache.Result result = query(new File(folder, i.fileName),
+						classifier, vocabularyId, modelId);
+				if (i.className.equals(result.labels[0]))
+					success++;
+			}
+			long elapsed = System.nanoTime() - start;
+
+			System.out.println("Query pass " + pass + ": "
+					+ (100.0 * success / testImages.size()) + "% in "
+					+ (elapsed / 1000 / Math.max(1, testImages.size()))
+					+ "us per image");
+		}
+		ResultCache cache = resultCache();
+		System.out.println("Result cache: " + Metrics.counter("cache.hit").get()
+				+ " hits, " + Metrics.counter("cache.miss").get() + " misses, "
+				+ Metrics.counter("cache.eviction").get() + " evictions, "
+				+ (cache == null ? 0 : cache.bytes()) + " bytes");
+	}
+
+	/**
+	 * Stores the visual word and the Hamming signature of each feature of the
+	 * image in image.words and image.signatures, reusing the words of a
+	 * quantized image.
+	 */
+	public static void embed(IgsImage image, ByteVocabulary words,
+			HammingEmbedding embedding) {
+		if (image.words == null) {
+			image.words = new int[image.features.size()];
+			for (int i = 0; i < image.words.length; i++)
+				image.words[i] = classifyVisualWord(image.features.get(i), words);
+		}
+		image.signatures = new long[image.features.size()];
+		for (int i = 0; i < image.words.length; i++) {
+			Feature f = image.features.get(i);
+			image.signatures[i] = embedding.signature(f.descriptor,
+					image.words[i]);
+		}
+	}
+
 	/**
 	 * Reads maxImages from a folder, calculates the SIFT features and wraps the
 	 * results into a IgsImage also paints each image on the GUI
@@ -383,36 +1126,61 @@ public class CbirWithSift extends JFrame {
 	 */
 	LinkedList<IgsImage> readImages(String folder, int maxImages)
 			throws IOException, InterruptedException {
+		return readImages(folder, maxImages, null);
+	}
+
+	/**
+	 * Reads images like readImages(folder, maxImages) and offers the features of
+	 * each image to the sink as soon as they are calculated.
+	 */
+	LinkedList<IgsImage> readImages(String folder, int maxImages,
+			FeatureSink sink) throws IOException, InterruptedException {
 		LinkedList<IgsImage> images = new LinkedList<IgsImage>();
 
 		File actual = new File("./images/" + folder);
+		File packed = new File("./images/" + folder + PACKED_SUFFIX);
 
 		int i = 0;
 
-		List<File> files = new ArrayList<File>();
-		for (File f : actual.listFiles()) {
-			files.add(f);
+		// the images in file name order
+		List<ImageRunnable> tasks = new ArrayList<ImageRunnable>();
+		boolean packedFeatures = READ_PACKED
+				&& PackedDataset.exists(packed, PackedDataset.FEATURES);
+		if (packedFeatures
+				&& !PackedDataset.matches(packed, PackedDataset.FEATURES,
+						featuresId())) {
+			System.err.println("Ignoring the feature shards of " + packed
+					+ ", they were packed with other extraction settings");
+			packedFeatures = false;
 		}
-
-		if (CHOOSE_IMAGES_RANDOMLY) {
-			Collections.shuffle(files);
+		if (packedFeatures) {
+			for (PackedDataset.Record r : PackedDataset.read(packed,
+					PackedDataset.FEATURES, featuresId()))
+				tasks.add(new ImageRunnable(r, new IgsImage(), sink));
+		} else if (READ_PACKED
+				&& PackedDataset.exists(packed, PackedDataset.PLANES)) {
+			for (PackedDataset.Record r : PackedDataset.read(packed,
+					PackedDataset.PLANES, 0))
+				tasks.add(new ImageRunnable(r, new IgsImage(), sink));
 		} else {
-			Collections.sort(files);
+			File[] files = actual.listFiles();
+			Arrays.sort(files);
+			for (File f : files) {
+				if (!f.getName().equals(".svn"))
+					tasks.add(new ImageRunnable(f, new IgsImage(), sink));
+			}
 		}
 
-		int p = Runtime.getRuntime().availableProcessors();
-		System.out.println("Pool with " + p + " Threads created.");
-		ExecutorService pool = Executors.newFixedThreadPool(p);
-		LinkedList<Future<IgsImage>> futures = new LinkedList<Future<IgsImage>>();
+		if (CHOOSE_IMAGES_RANDOMLY)
+			Collections.shuffle(tasks);
 
-		for (File f : files) {
-			if (!f.getName().equals(".svn")) {
-				if (i++ > maxImages)
-					break;
-				IgsImage image = new IgsImage();
+		ExecutorService pool = newPool("extract.queue");
+		LinkedList<Future<IgsImage>> futures = new LinkedList<Future<IgsImage>>();
 
-				futures.add(pool.submit(new ImageRunnable(f, image), image));
-			}
+		for (ImageRunnable task : tasks) {
+			if (i++ > maxImages)
+				break;
+			futures.add(pool.submit(task, task.image));
 		}
 
 		pool.shutdown();
@@ -431,24 +1199,69 @@ public class CbirWithSift extends JFrame {
 
 	public class ImageRunnable implements Runnable {
 		File file;
+		PackedDataset.Record record;
 		IgsImage image;
+		FeatureSink sink;
 
 		public ImageRunnable(File f, IgsImage i) {
+			this(f, i, null);
+		}
+
+		public ImageRunnable(File f, IgsImage i, FeatureSink s) {
 			file = f;
 			image = i;
+			sink = s;
+		}
+
+		public ImageRunnable(PackedDataset.Record r, IgsImage i,
+				FeatureSink s) {
+			record = r;
+			image = i;
+			sink = s;
 		}
 
 		@Override
 		public void run() {
+			if (record != null) {
+				runPacked();
+				return;
+			}
 			try {
+				long start = System.nanoTime();
 				image.image = ImageIO.read(file);
+				DECODE.stop(start);
+				image.fileName = file.getName();
 				image.className = file.getName().substring(0,
 						file.getName().indexOf('_'));
 				image.features = calculateSift(image.image);
+				if (sink != null)
+					sink.offer(file.getName(), image.features);
 			} catch (Exception e) {
 				image = null;
 			}
 		}
+
+		/*
+		 * Reads the image from a packed shard, which holds either its features
+		 * or its grayscale plane.
+		 */
+		private void runPacked() {
+			long start = System.nanoTime();
+			image.fileName = record.fileName;
+			image.className = record.className;
+			if (record.hasFeatures()) {
+				image.features = record.features();
+				DECODE.stop(start);
+				IMAGES.add(1);
+				FEATURES.add(image.features.size());
+			} else {
+				FloatArray2D plane = record.plane();
+				DECODE.stop(start);
+				image.features = calculateSift(plane);
+			}
+			if (sink != null)
+				sink.offer(record.fileName, image.features);
+		}
 	}
 
 	/**
@@ -500,19 +1313,27 @@ public class CbirWithSift extends JFrame {
 		if (cur_image == null)
 			return;
 
-		_g.drawImage(cur_image.image, 0, 0, null);
+		// images read from packed shards have no bitmap
+		int height = 0;
+		if (cur_image.image != null) {
+			_g.drawImage(cur_image.image, 0, 0, null);
+			height = cur_image.image.getHeight();
+		}
 
 		_g.setColor(cur_image.isClassificationCorect() ? Color.green
 				: Color.red);
 
 		_g.drawString(cur_image.className + " > " + cur_image.classifiedName,
-				20, cur_image.image.getHeight() + 40);
+				20, height + 40);
 
 		if (cur_image.features != null)
-			for (Feature f : cur_image.features)
+			for (int i = 0; i < cur_image.features.size(); i++) {
+				Feature f = cur_image.features.get(i);
 				drawSquare(_g, new double[] { f.location[0], f.location[1] },
 						fdsize * 4.0 * f.scale, f.orientation,
-						doClassifyVisualWord(f));
+						cur_image.words != null ? cur_image.words[i]
+								: doClassifyVisualWord(f));
+			}
 
 	}
 
@@ -545,31 +1366,64 @@ public class CbirWithSift extends JFrame {
 		return image_float;
 	}
 
+	/**
+	 * @return the identity of the feature extraction settings, which bind the
+	 *         feature shards of PackedDataset
+	 */
+	static long featuresId() {
+		String extraction = DENSE_SIFT ? "dense " + DENSE_STRIDE + " "
+				+ Arrays.toString(DENSE_CELL_SIZES) : "dog " + steps + " "
+				+ initial_sigma + " " + min_size + " " + max_size;
+		return ModelIO.settingsId(extraction + " " + fdsize + " " + fdbins + " "
+				+ MAX_FEATURES_PER_IMAGE);
+	}
+
 	public static void main(String[] _args) throws Exception {
 		new CbirWithSift();
 	}
 
-	private Vector<Feature> calculateSift(BufferedImage image)
+	static Vector<Feature> calculateSift(BufferedImage image)
 			throws IOException {
+		long start = System.nanoTime();
+		FloatArray2D fa = ImageToFloatArray2D(image);
+		GRAYSCALE.stop(start);
+
+		return calculateSift(fa);
+	}
+
+	/**
+	 * @return the features of a grayscale image, which is enhanced in place
+	 */
+	static Vector<Feature> calculateSift(FloatArray2D fa) {
 
 		Vector<Feature> _features = new Vector<Feature>();
 
 		FloatArray2DSIFT sift = new FloatArray2DSIFT(fdsize, fdbins);
 
-		FloatArray2D fa = ImageToFloatArray2D(image);
+		long start = System.nanoTime();
 		Filter.enhance(fa, 1.0f);
 
 		fa = Filter.computeGaussianFastMirror(fa,
 				(float) Math.sqrt(initial_sigma * initial_sigma - 0.25));
 
-		long start_time = System.currentTimeMillis();
-
-		sift.init(fa, steps, initial_sigma, min_size, max_size);
-		_features = sift.run(max_size);
+		if (DENSE_SIFT) {
+			_features = new DenseSift(fa).extract(DENSE_STRIDE, DENSE_CELL_SIZES);
+		} else if (PARALLEL_SIFT) {
+			_features = ParallelSift.run(fa, fdsize, fdbins, steps, initial_sigma,
+					min_size, max_size);
+		} else if (MAX_FEATURES_PER_IMAGE > 0) {
+			sift.init(fa, steps, initial_sigma, min_size, max_size);
+			_features = FeatureBudget.run(sift, max_size, MAX_FEATURES_PER_IMAGE);
+		} else {
+			sift.init(fa, steps, initial_sigma, min_size, max_size);
+			_features = sift.run(max_size);
+		}
+		if (MAX_FEATURES_PER_IMAGE > 0)
+			_features = FeatureBudget.select(_features, MAX_FEATURES_PER_IMAGE);
+		SIFT.stop(start);
 
-		System.out.println("processing SIFT took "
-				+ (System.currentTimeMillis() - start_time) + "ms to find \t"
-				+ _features.size() + " features");
+		IMAGES.add(1);
+		FEATURES.add(_features.size());
 
 		return _features;
 	}
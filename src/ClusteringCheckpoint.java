@@ -0,0 +1,66 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The state of the medoid clustering after an iteration, so an interrupted
+ * clustering can be resumed.
+ *
+ * The clustering has no random state, its next iteration depends only on the
+ * medoids and the training descriptors. A checkpoint therefore holds the medoid
+ * indexes and is bound by its header to the training descriptors it was written
+ * for (see ModelIO.descriptorsId), so it is never resumed on another sample.
+ */
+public class ClusteringCheckpoint {
+
+	private static final String KIND = "ClusteringCheckpoint";
+
+	// the number of completed iterations
+	public final int iteration;
+	// the summed distance of the points to their medoids after that iteration
+	public final double objective;
+	public final int[] medoids;
+
+	public ClusteringCheckpoint(int iteration, double objective, int[] medoids) {
+		this.iteration = iteration;
+		this.objective = objective;
+		this.medoids = medoids;
+	}
+
+	/**
+	 * Writes the checkpoint to a temporary file that replaces the file only when
+	 * complete, so a crash while saving keeps the previous checkpoint.
+	 */
+	public void save(File file, long descriptorsId) throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temporary)))) {
+			ModelIO.writeHeader(out, KIND, descriptorsId);
+			out.writeInt(iteration);
+			out.writeDouble(objective);
+			ModelIO.writeInts(out, medoids);
+		}
+		Files.move(temporary.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public static ClusteringCheckpoint load(File file, long descriptorsId)
+			throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)))) {
+			ModelIO.readHeader(in, KIND, descriptorsId);
+			int iteration = in.readInt();
+			double objective = in.readDouble();
+			return new ClusteringCheckpoint(iteration, objective,
+					ModelIO.readInts(in));
+		}
+	}
+}
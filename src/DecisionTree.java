@@ -1,12 +1,17 @@
 
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 
 
@@ -15,44 +20,122 @@ public class DecisionTree implements IClassifier {
 	private static final double LOG2_BASE = Math.log(2);
 	private static final double MIN_GAIN = 0.1;
 	
+	// columns scanned by one task of the parallel split search
+	private static final int FEATURES_PER_TASK = 8;
+	// nodes with less rows * columns are scanned by the calling thread
+	private static final int MIN_PARALLEL_WORK = 1 << 14;
+	// columns with a larger value range per row are sorted instead of binned
+	private static final int MAX_BINS_PER_ROW = 4;
+	
+	// shared with RandomForest, which grows its trees in the same pool
+	static final ForkJoinPool SPLIT_POOL = new ForkJoinPool();
+	
 	private final String[] classNames;
 	private final int classCount;
 	private final int featureCount;
-	private DecisionTreeNode root;
+	// columns considered at each split, all columns unless a random subset is drawn
+	private final int featuresPerSplit;
+	private final Random random;
+	private final boolean prune;
+	private final int[] allColumns;
+	private FlatTree tree;
 	
 	public DecisionTree(int classCnt, int featureCnt) {
+		this(classCnt, featureCnt, featureCnt, null, true);
+	}
+	
+	/*
+	 * A tree that considers a random subset of featuresPerSplit columns at each
+	 * split, as grown by RandomForest.
+	 */
+	DecisionTree(int classCnt, int featureCnt, int featuresPerSplit, Random random, boolean prune) {
 		this.featureCount = featureCnt;
 		this.classCount = classCnt;
 		this.classNames = new String[classCnt];
+		this.featuresPerSplit = featuresPerSplit;
+		this.random = random;
+		this.prune = prune;
+		this.allColumns = new int[featureCnt];
+		for(int col = 0; col < featureCnt; col++) {
+			allColumns[col] = col;
+		}
 	}
 	
 	@Override
 	public String classify(int[] histogram) {
-		int clazz = classify(histogram, root);
+		int clazz = tree.leafClass[tree.leaf(histogram)];
 		
 		return classNames[clazz];
 	}
+	
+	@Override
+	public String[] getClassNames() {
+		return classNames;
+	}
+	
+	@Override
+	public void classify(final int[][] histograms, final int[] classIndices, final double[] scores) {
+		ParallelBatch.run(histograms.length, new ParallelBatch.Range() {
+			@Override
+			public void run(int from, int to) {
+				for(int i = from; i < to; i++) {
+					int leaf = tree.leaf(histograms[i]);
+					classIndices[i] = tree.leafClass[leaf];
+					System.arraycopy(tree.leafScores, leaf * classCount, scores, i * classCount, classCount);
+				}
+			}
+		});
+	}
 
 	@Override
 	public void learn(Map<String, Vector<int[]>> dataSet) {
-		List<LabeledHistogram> labeled = toLabeledList(dataSet);
-		root = pruneTree(buildTree(labeled), MIN_GAIN);
+		learn(toLabeledList(dataSet));
 	}
-
-	private int classify(int[] histogram, DecisionTreeNode tree) {
-		if(tree.isLeaf()) return tree.getClazz();
+	
+	/*
+	 * Learns from histograms labeled with indices into classNames.
+	 */
+	void learn(int[][] histograms, int[] labels, String[] classNames) {
+		System.arraycopy(classNames, 0, this.classNames, 0, classCount);
 		
-		int value = histogram[tree.getFeature()];
-		DecisionTreeNode next;
-		if(value < tree.getValue()) {
-			next = tree.left;
-		} else {
-			next = tree.right;
+		List<LabeledHistogram> data = new ArrayList<>(histograms.length);
+		for(int i = 0; i < histograms.length; i++) {
+			data.add(new LabeledHistogram(histograms[i], labels[i]));
 		}
-		
-		return classify(histogram, next);
+		learn(data);
 	}
-
+	
+	private void learn(List<LabeledHistogram> labeled) {
+		DecisionTreeNode root = buildTree(labeled);
+		if(prune && !root.isLeaf()) {
+			root = pruneTree(root, MIN_GAIN);
+		}
+		tree = FlatTree.compile(root, classCount);
+	}
+	
+	FlatTree getFlatTree() {
+		return tree;
+	}
+	
+	@Override
+	public void save(DataOutputStream out, long vocabularyId) throws IOException {
+		ModelIO.writeHeader(out, "DecisionTree", vocabularyId);
+		out.writeInt(classCount);
+		out.writeInt(featureCount);
+		ModelIO.writeStrings(out, classNames);
+		tree.save(out);
+	}
+	
+	@Override
+	public void load(DataInputStream in, long vocabularyId) throws IOException {
+		ModelIO.readHeader(in, "DecisionTree", vocabularyId);
+		if(in.readInt() != classCount || in.readInt() != featureCount) {
+			throw new IOException("Model was trained for another number of classes or features");
+		}
+		System.arraycopy(ModelIO.readStrings(in), 0, classNames, 0, classCount);
+		tree = FlatTree.load(in, classCount);
+	}
+	
  	private DecisionTreeNode pruneTree(DecisionTreeNode tree, double minGain) {
  		if(!tree.getLeft().isLeaf()) {
  			pruneTree(tree.getLeft(), minGain);
@@ -69,7 +152,7 @@ public class DecisionTree implements IClassifier {
  			double delta = entropy(combined) - (entropy(tree.getLeft().getResults()) + entropy(tree.getRight().getResults()) / 2);
  			
  			if(delta < minGain) {
- 				tree.toLeaf(combined);
+ 				tree.toLeaf(combined, uniqueCounts(combined));
  			}
  		}
  		
@@ -77,41 +160,153 @@ public class DecisionTree implements IClassifier {
  	}
 	
 	private DecisionTreeNode buildTree(List<LabeledHistogram> data) {
-		if(data.size() == 0) return DecisionTreeNode.createLeafNode(null); 
+		if(data.size() == 0) return DecisionTreeNode.createLeafNode(null, new int[classCount]); 
+		
+		final int[] counts = uniqueCounts(data);
+		final int[] columns = featuresPerSplit < featureCount ? randomColumns() : allColumns;
+		SplitTask task = new SplitTask(data, counts, columns, 0, columns.length);
+		Split best = data.size() * featureCount < MIN_PARALLEL_WORK ? task.compute() : SPLIT_POOL.invoke(task);
+		
+		if(best != null) {
+			Pair<List<LabeledHistogram>> bestSets = divideSet(data, best.feature, best.value);
+			DecisionTreeNode left = buildTree(bestSets.left);
+			DecisionTreeNode right = buildTree(bestSets.right);
+			return DecisionTreeNode.createDecisionNode(left, right, best.feature, best.value);
+		}
 		
-		double currentScore = entropy(data);
-		double bestGain = 0;
-		int bestCriteria = 0;
-		int bestValue = 0;
-		Pair<List<LabeledHistogram>> bestSets = null;
+		return DecisionTreeNode.createLeafNode(data, counts);
+	}
+	
+	/*
+	 * Finds the split value with the highest information gain for one column. The
+	 * values are binned into per class count histograms and all thresholds are
+	 * evaluated in one sweep with running class counts. Left of a threshold are all
+	 * rows with a smaller value, like in divideSet.
+	 */
+	private Split bestSplit(List<LabeledHistogram> data, int[] counts, int col) {
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		for(LabeledHistogram row : data) {
+			min = Math.min(min, row.histogram[col]);
+			max = Math.max(max, row.histogram[col]);
+		}
+		if(min == max) return null;
 		
-		for(int col = 0; col < featureCount; col++) {
-			Set<Integer> values = new HashSet<>();
+		final int size = data.size();
+		final int[] bins;
+		final int[] values;
+		if((long) max - min < MAX_BINS_PER_ROW * size) {
+			bins = new int[(max - min + 1) * classCount];
+			values = null;
 			for(LabeledHistogram row : data) {
-				values.add(row.histogram[col]);
+				bins[(row.histogram[col] - min) * classCount + row.label]++;
 			}
+		} else {
+			// sparse columns with a large range are sorted instead of binned
+			values = distinctSortedValues(data, col);
+			bins = new int[values.length * classCount];
+			for(LabeledHistogram row : data) {
+				bins[Arrays.binarySearch(values, row.histogram[col]) * classCount + row.label]++;
+			}
+		}
+		
+		final double currentScore = entropy(counts, size);
+		final int[] left = new int[classCount];
+		final int[] right = counts.clone();
+		int leftSize = 0;
+		
+		Split best = null;
+		for(int bin = 0; bin < bins.length / classCount; bin++) {
+			int binSize = 0;
+			for(int clazz = 0; clazz < classCount; clazz++) {
+				binSize += bins[bin * classCount + clazz];
+			}
+			if(binSize == 0) continue;
 			
-			for(int value : values) {
-				Pair<List<LabeledHistogram>> sets = divideSet(data, col, value);
-				
-				double p = (double)sets.left.size() / data.size();
-				double gain = currentScore - p*entropy(sets.left)-(1-p)*entropy(sets.right);
-				if(gain > bestGain && sets.left.size() > 0 && sets.right.size() > 0) {
-					bestGain = gain;
-					bestCriteria = col;
-					bestValue = value;
-					bestSets = sets;
+			if(leftSize > 0) {
+				double p = (double) leftSize / size;
+				double gain = currentScore - p*entropy(left, leftSize) - (1-p)*entropy(right, size - leftSize);
+				if(gain > 0 && (best == null || gain > best.gain)) {
+					best = new Split(col, values == null ? min + bin : values[bin], gain);
 				}
 			}
+			
+			for(int clazz = 0; clazz < classCount; clazz++) {
+				left[clazz] += bins[bin * classCount + clazz];
+				right[clazz] -= bins[bin * classCount + clazz];
+			}
+			leftSize += binSize;
+		}
+		return best;
+	}
+	
+	/*
+	 * Draws featuresPerSplit distinct columns with a partial Fisher-Yates shuffle.
+	 */
+	private int[] randomColumns() {
+		int[] columns = allColumns.clone();
+		for(int i = 0; i < featuresPerSplit; i++) {
+			int j = i + random.nextInt(featureCount - i);
+			int swap = columns[i];
+			columns[i] = columns[j];
+			columns[j] = swap;
 		}
+		return Arrays.copyOf(columns, featuresPerSplit);
+	}
+	
+	private int[] distinctSortedValues(List<LabeledHistogram> data, int col) {
+		int[] values = new int[data.size()];
+		for(int i = 0; i < values.length; i++) {
+			values[i] = data.get(i).histogram[col];
+		}
+		Arrays.sort(values);
 		
-		if(bestSets != null) {
-			DecisionTreeNode left = buildTree(bestSets.left);
-			DecisionTreeNode right = buildTree(bestSets.right);
-			return DecisionTreeNode.createDecisionNode(left, right, bestCriteria, bestValue);
+		int distinct = 0;
+		for(int i = 0; i < values.length; i++) {
+			if(i == 0 || values[i] != values[i - 1]) {
+				values[distinct++] = values[i];
+			}
+		}
+		return Arrays.copyOf(values, distinct);
+	}
+	
+	/*
+	 * Scans a range of the given columns for the best split, forking halves of the
+	 * range into the pool until few enough columns are left.
+	 */
+	@SuppressWarnings("serial")
+	private class SplitTask extends RecursiveTask<Split> {
+		private final List<LabeledHistogram> data;
+		private final int[] counts;
+		private final int[] columns;
+		private final int from;
+		private final int to;
+		
+		public SplitTask(List<LabeledHistogram> data, int[] counts, int[] columns, int from, int to) {
+			this.data = data;
+			this.counts = counts;
+			this.columns = columns;
+			this.from = from;
+			this.to = to;
 		}
 		
-		return DecisionTreeNode.createLeafNode(data);
+		@Override
+		protected Split compute() {
+			if(to - from <= FEATURES_PER_TASK) {
+				Split best = null;
+				for(int i = from; i < to; i++) {
+					best = Split.better(best, bestSplit(data, counts, columns[i]));
+				}
+				return best;
+			}
+			
+			int middle = (from + to) >>> 1;
+			SplitTask lower = new SplitTask(data, counts, columns, from, middle);
+			SplitTask upper = new SplitTask(data, counts, columns, middle, to);
+			lower.fork();
+			Split upperBest = upper.compute();
+			return Split.better(lower.join(), upperBest);
+		}
 	}
 	
 	private Pair<List<LabeledHistogram>> divideSet(List<LabeledHistogram> data, int col, int value) {
@@ -154,11 +349,16 @@ public class DecisionTree implements IClassifier {
 	}
 	
 	private double entropy(List<LabeledHistogram> classified) {
-		final int examplesCount = classified.size();
-		final int[] counts = uniqueCounts(classified);
-		
+		return entropy(uniqueCounts(classified), classified.size());
+	}
+	
+	/*
+	 * Classes without examples do not contribute (0 * log 0 = 0).
+	 */
+	private double entropy(int[] counts, int examplesCount) {
 		double entropy = 0.0;
 		for(int clazz = 0; clazz < counts.length; clazz++) {
+			if(counts[clazz] == 0) continue;
 			double probabilisticDensity = (double) counts[clazz] / examplesCount;
 			entropy = entropy - probabilisticDensity * log2(probabilisticDensity);
 		}
@@ -181,12 +381,34 @@ public class DecisionTree implements IClassifier {
 	}
 
 	private static class Pair<T> {
-		final T right;
 		final T left;
+		final T right;
+		
+		public Pair(T left, T right) {
+			this.left = left;
+			this.right = right;
+		}
+	}
+	
+	private static class Split {
+		final int feature;
+		final int value;
+		final double gain;
+		
+		public Split(int feature, int value, double gain) {
+			this.feature = feature;
+			this.value = value;
+			this.gain = gain;
+		}
 		
-		public Pair(T t, T v) {
-			right = t;
-			left = v;
+		/*
+		 * On equal gain the split of the first column range wins, which makes the
+		 * parallel scan deterministic as long as a is the lower range.
+		 */
+		static Split better(Split a, Split b) {
+			if(a == null) return b;
+			if(b == null) return a;
+			return b.gain > a.gain ? b : a;
 		}
 	}
 	
@@ -195,16 +417,19 @@ public class DecisionTree implements IClassifier {
 		private final int feature;
 		private final int value;
 		public List<LabeledHistogram> results;
+		//the class counts of a leaf
+		private int[] counts;
 		private DecisionTreeNode left;
 		private DecisionTreeNode right;
 		
-		private DecisionTreeNode(List<LabeledHistogram> results, DecisionTreeNode left, DecisionTreeNode right, boolean isLeaf, int feature, int value) {
+		private DecisionTreeNode(List<LabeledHistogram> results, int[] counts, DecisionTreeNode left, DecisionTreeNode right, boolean isLeaf, int feature, int value) {
 			this.isLeaf = isLeaf;
 			this.feature = feature;
 			this.value = value;
 			this.left = left;
 			this.right = right;
 			this.results = results;
+			this.counts = counts;
 		}
 		
 		public boolean isLeaf() {
@@ -212,10 +437,6 @@ public class DecisionTree implements IClassifier {
 		}
 
 		public int getClazz() {
-			int[] counts = new int[2];
-			for(LabeledHistogram hist : results) {
-				counts[hist.label]++;
-			}
 			int max = 0;
 			int maxClass = 0;
 			for(int i = 0; i < counts.length; i++) {
@@ -240,6 +461,10 @@ public class DecisionTree implements IClassifier {
 			return results;
 		}
 
+		public int[] getCounts() {
+			return counts;
+		}
+
 		public DecisionTreeNode getLeft() {
 			return left;
 		}
@@ -248,19 +473,115 @@ public class DecisionTree implements IClassifier {
 			return right;
 		}
 		
-		public void toLeaf(List<LabeledHistogram> results) {
+		public void toLeaf(List<LabeledHistogram> results, int[] counts) {
 			isLeaf = true;
 			left = null;
 			right = null;
 			this.results = results;
+			this.counts = counts;
 		}
 		
-		public static DecisionTreeNode createLeafNode(List<LabeledHistogram> data) {
-			return new DecisionTreeNode(data, null, null, true, -1, -1);
+		public static DecisionTreeNode createLeafNode(List<LabeledHistogram> data, int[] counts) {
+			return new DecisionTreeNode(data, counts, null, null, true, -1, -1);
 		}
 		
 		public static DecisionTreeNode createDecisionNode(DecisionTreeNode left, DecisionTreeNode right, int feature, int value) {
-			return new DecisionTreeNode(null, left, right, false, feature, value);
+			return new DecisionTreeNode(null, null, left, right, false, feature, value);
+		}
+	}
+	
+	/*
+	 * A trained tree compiled into parallel primitive arrays. Node 0 is the root,
+	 * a node with feature -1 is a leaf. Inference is a loop over these arrays.
+	 */
+	static final class FlatTree {
+		final int[] feature;
+		final int[] threshold;
+		final int[] left;
+		final int[] right;
+		final int[] leafClass;
+		//the class fractions of each leaf, classCount values per node
+		final double[] leafScores;
+		
+		private FlatTree(int nodes, int classCount) {
+			feature = new int[nodes];
+			threshold = new int[nodes];
+			left = new int[nodes];
+			right = new int[nodes];
+			leafClass = new int[nodes];
+			leafScores = new double[nodes * classCount];
+		}
+		
+		int leaf(int[] histogram) {
+			int node = 0;
+			while(feature[node] >= 0) {
+				node = histogram[feature[node]] < threshold[node] ? left[node] : right[node];
+			}
+			return node;
+		}
+		
+		static FlatTree compile(DecisionTreeNode root, int classCount) {
+			FlatTree flat = new FlatTree(countNodes(root), classCount);
+			flat.fill(root, 0, classCount);
+			return flat;
+		}
+		
+		private static int countNodes(DecisionTreeNode node) {
+			return node.isLeaf() ? 1 : 1 + countNodes(node.getLeft()) + countNodes(node.getRight());
+		}
+		
+		/*
+		 * Stores the subtree in preorder starting at index and returns the next free index.
+		 */
+		private int fill(DecisionTreeNode node, int index, int classCount) {
+			if(node.isLeaf()) {
+				feature[index] = -1;
+				leafClass[index] = node.getClazz();
+				int[] counts = node.getCounts();
+				int total = 0;
+				for(int count : counts) {
+					total += count;
+				}
+				for(int clazz = 0; clazz < classCount; clazz++) {
+					leafScores[index * classCount + clazz] = total == 0 ? 0 : (double) counts[clazz] / total;
+				}
+				return index + 1;
+			}
+			
+			feature[index] = node.getFeature();
+			threshold[index] = node.getValue();
+			left[index] = index + 1;
+			right[index] = fill(node.getLeft(), index + 1, classCount);
+			return fill(node.getRight(), right[index], classCount);
+		}
+		
+		void save(DataOutputStream out) throws IOException {
+			ModelIO.writeInts(out, feature);
+			ModelIO.writeInts(out, threshold);
+			ModelIO.writeInts(out, left);
+			ModelIO.writeInts(out, right);
+			ModelIO.writeInts(out, leafClass);
+			ModelIO.writeDoubles(out, leafScores);
+		}
+		
+		static FlatTree load(DataInputStream in, int classCount) throws IOException {
+			int[] feature = ModelIO.readInts(in);
+			FlatTree flat = new FlatTree(feature.length, classCount);
+			System.arraycopy(feature, 0, flat.feature, 0, feature.length);
+			readInto(in, flat.threshold);
+			readInto(in, flat.left);
+			readInto(in, flat.right);
+			readInto(in, flat.leafClass);
+			double[] leafScores = ModelIO.readDoubles(in);
+			if(leafScores.length != flat.leafScores.length) throw new IOException("Corrupt tree");
+			System.arraycopy(leafScores, 0, flat.leafScores, 0, leafScores.length);
+			return flat;
+		}
+		
+		private static void readInto(DataInputStream in, int[] target) throws IOException {
+			int[] values = ModelIO.readInts(in);
+			if(values.length != target.length) throw new IOException("Corrupt tree");
+			System.arraycopy(values, 0, target, 0, values.length);
 		}
 	}
 	
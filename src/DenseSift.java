@@ -0,0 +1,177 @@
+import java.util.Vector;
+
+import mpi.cbg.fly.Feature;
+import mpi.cbg.fly.Filter;
+import mpi.cbg.fly.FloatArray2D;
+
+/**
+ * SIFT descriptors on a regular grid at a few fixed scales, a fast alternative
+ * to the DoG keypoint detection whose cost and feature count depend only on the
+ * image size.
+ *
+ * The gradients are computed once. Their magnitudes are split into one image per
+ * orientation bin, interpolated between the two nearest bins as in
+ * FloatArray2DSIFT. For every cell size these images are summed over square
+ * cells with a separable box filter, and a descriptor reads 4x4 neighbouring
+ * cells of each orientation image. The descriptors are upright, weighted by a
+ * Gaussian over the cells and laid out and normalized like those of
+ * FloatArray2DSIFT, so both kinds can be clustered and quantized alike.
+ *
+ * The scale of a dense feature is its cell size in pixels, a descriptor covers a
+ * square of 4 cells.
+ */
+public class DenseSift {
+
+	private static final int SPATIAL_BINS = 4;
+	private static final int ORIENTATION_BINS = 8;
+	private static final float ORIENTATION_BIN_SIZE = (float) (2 * Math.PI / ORIENTATION_BINS);
+
+	// the Gaussian weight of each cell, sigma is half the descriptor width
+	private static final float[] CELL_WEIGHTS = new float[SPATIAL_BINS
+			* SPATIAL_BINS];
+	static {
+		float center = (SPATIAL_BINS - 1) / 2f;
+		float sigma = SPATIAL_BINS / 2f;
+		for (int i = 0; i < SPATIAL_BINS; i++) {
+			for (int j = 0; j < SPATIAL_BINS; j++) {
+				float dy = i - center, dx = j - center;
+				CELL_WEIGHTS[i * SPATIAL_BINS + j] = (float) Math
+						.exp(-(dx * dx + dy * dy) / (2 * sigma * sigma));
+			}
+		}
+	}
+
+	private final int width;
+	private final int height;
+	// the gradient magnitude of each pixel per orientation bin
+	private final float[][] orientations;
+	// the cell sums of the orientation images for the current cell size, the
+	// cell of each pixel starts at the pixel
+	private final float[][] cells;
+	// the horizontal sums of the box filter
+	private final float[] rows;
+
+	/**
+	 * Computes the gradients of the image, which should be smoothed like the
+	 * input of FloatArray2DSIFT.
+	 */
+	public DenseSift(FloatArray2D image) {
+		width = image.width;
+		height = image.height;
+		orientations = new float[ORIENTATION_BINS][width * height];
+		cells = new float[ORIENTATION_BINS][width * height];
+		rows = new float[width * height];
+
+		FloatArray2D[] gradients = Filter.createGradients(image);
+		float[] magnitudes = gradients[0].data;
+		float[] angles = gradients[1].data;
+		for (int p = 0; p < magnitudes.length; p++) {
+			float bin = (float) ((angles[p] + Math.PI) / ORIENTATION_BIN_SIZE);
+			int lower = (int) bin;
+			float fraction = bin - lower;
+			orientations[lower % ORIENTATION_BINS][p] += magnitudes[p]
+					* (1 - fraction);
+			orientations[(lower + 1) % ORIENTATION_BINS][p] += magnitudes[p]
+					* fraction;
+		}
+	}
+
+	/**
+	 * @return the descriptors of the grid with the given stride in pixels, for
+	 *         each cell size
+	 */
+	public Vector<Feature> extract(int stride, int[] cellSizes) {
+		Vector<Feature> features = new Vector<Feature>();
+		for (int cellSize : cellSizes) {
+			int window = SPATIAL_BINS * cellSize;
+			if (window > width || window > height) {
+				continue;
+			}
+			sumCells(cellSize);
+
+			for (int y = 0; y + window <= height; y += stride) {
+				for (int x = 0; x + window <= width; x += stride) {
+					Feature feature = new Feature();
+					feature.location = new float[] { x + window / 2f,
+							y + window / 2f };
+					feature.scale = cellSize;
+					feature.orientation = 0;
+					feature.descriptor = describe(x, y, cellSize);
+					features.add(feature);
+				}
+			}
+		}
+		return features;
+	}
+
+	/*
+	 * Box filters the orientation images with a cellSize x cellSize square into
+	 * cells, valid for the pixels whose cell lies within the image.
+	 */
+	private void sumCells(int cellSize) {
+		for (int b = 0; b < ORIENTATION_BINS; b++) {
+			float[] in = orientations[b];
+			float[] out = cells[b];
+
+			for (int y = 0; y < height; y++) {
+				int row = y * width;
+				float sum = 0;
+				for (int x = 0; x < cellSize; x++) {
+					sum += in[row + x];
+				}
+				for (int x = 0; x + cellSize <= width; x++) {
+					rows[row + x] = sum;
+					if (x + cellSize < width) {
+						sum += in[row + x + cellSize] - in[row + x];
+					}
+				}
+			}
+
+			for (int x = 0; x + cellSize <= width; x++) {
+				float sum = 0;
+				for (int y = 0; y < cellSize; y++) {
+					sum += rows[y * width + x];
+				}
+				for (int y = 0; y + cellSize <= height; y++) {
+					out[y * width + x] = sum;
+					if (y + cellSize < height) {
+						sum += rows[(y + cellSize) * width + x] - rows[y * width + x];
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * The descriptor of the window with the upper left corner (x, y), in the
+	 * order of FloatArray2DSIFT: cell rows, cell columns and orientations, each
+	 * descending.
+	 */
+	private float[] describe(int x, int y, int cellSize) {
+		float[] descriptor = new float[SPATIAL_BINS * SPATIAL_BINS
+				* ORIENTATION_BINS];
+		float max = 0;
+		for (int i = 0; i < SPATIAL_BINS; i++) {
+			for (int j = 0; j < SPATIAL_BINS; j++) {
+				int pixel = (y + i * cellSize) * width + x + j * cellSize;
+				float weight = CELL_WEIGHTS[i * SPATIAL_BINS + j];
+				int offset = ((SPATIAL_BINS - 1 - i) * SPATIAL_BINS + SPATIAL_BINS
+						- 1 - j) * ORIENTATION_BINS;
+				for (int b = 0; b < ORIENTATION_BINS; b++) {
+					float value = cells[b][pixel] * weight;
+					descriptor[offset + ORIENTATION_BINS - 1 - b] = value;
+					max = Math.max(max, value);
+				}
+			}
+		}
+
+		// as FloatArray2DSIFT, scale the largest value to 0.2
+		if (max > 0) {
+			float norm = max / 0.2f;
+			for (int k = 0; k < descriptor.length; k++) {
+				descriptor[k] = Math.min(1, descriptor[k] / norm);
+			}
+		}
+		return descriptor;
+	}
+}
@@ -0,0 +1,112 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import mpi.cbg.fly.Feature;
+
+/**
+ * Samples the training descriptors for the vocabulary while the images are read.
+ *
+ * Of each image only the perImage features of largest scale are taken, so
+ * feature rich images do not dominate the vocabulary. These are reduced to a
+ * uniform sample of at most size features: every feature gets a pseudo random
+ * key derived from its image and position, and the features with the smallest
+ * keys are kept. The sample does not depend on the order in which the images are
+ * offered, and only the sample itself is held in memory.
+ */
+public class DescriptorSampler implements FeatureSink {
+
+	private final int perImage;
+	private final int size;
+	private final long seed;
+
+	// the kept features, largest key on top
+	private final PriorityQueue<Sampled> sample;
+	private long offered;
+
+	private static class Sampled {
+		final long key;
+		final Feature feature;
+
+		Sampled(long key, Feature feature) {
+			this.key = key;
+			this.feature = feature;
+		}
+	}
+
+	private static final Comparator<Sampled> BY_KEY = new Comparator<Sampled>() {
+		@Override
+		public int compare(Sampled a, Sampled b) {
+			return a.key < b.key ? -1 : a.key > b.key ? 1 : 0;
+		}
+	};
+
+	public DescriptorSampler(int perImage, int size, long seed) {
+		this.perImage = perImage;
+		this.size = size;
+		this.seed = seed;
+		this.sample = new PriorityQueue<Sampled>(size + 1,
+				Collections.reverseOrder(BY_KEY));
+	}
+
+	@Override
+	public void offer(String image, List<Feature> features) {
+		Feature[] ranked = features.toArray(new Feature[features.size()]);
+		if (ranked.length > perImage) {
+			Arrays.sort(ranked, FeatureBudget.BY_SCALE);
+			ranked = Arrays.copyOf(ranked, perImage);
+		}
+
+		final long imageKey = mix(seed ^ image.hashCode());
+		synchronized (sample) {
+			for (int i = 0; i < ranked.length; i++) {
+				offered++;
+				long key = mix(imageKey + i);
+				if (sample.size() < size) {
+					sample.add(new Sampled(key, ranked[i]));
+				} else if (key < sample.peek().key) {
+					sample.poll();
+					sample.add(new Sampled(key, ranked[i]));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of features that passed the per image cap
+	 */
+	public long getOffered() {
+		synchronized (sample) {
+			return offered;
+		}
+	}
+
+	/**
+	 * @return the sampled features in key order, a random but reproducible order
+	 */
+	public Feature[] sample() {
+		List<Sampled> sorted;
+		synchronized (sample) {
+			sorted = new ArrayList<Sampled>(sample);
+		}
+		Collections.sort(sorted, BY_KEY);
+
+		Feature[] features = new Feature[sorted.size()];
+		for (int i = 0; i < features.length; i++) {
+			features[i] = sorted.get(i).feature;
+		}
+		return features;
+	}
+
+	/*
+	 * The splitmix64 finalizer, spreads consecutive inputs over all 64 bits.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,183 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Finds near duplicate images by their visual word histograms without comparing
+ * all pairs.
+ *
+ * An image is the set of its visual word occurrences: a word that occurs n
+ * times contributes the elements (word, 0) .. (word, n-1), so the Jaccard
+ * similarity of two such sets is the histogram overlap sum(min) / sum(max).
+ * Each image gets a MinHash signature of bands x rows hashes, and is indexed
+ * under the hash of every band. Images sharing a band are candidates, which are
+ * confirmed by their exact histogram overlap. With 25 bands of 4 rows a pair
+ * becomes a candidate with probability 0.999 at overlap 0.7, 0.80 at 0.5 and
+ * 0.04 at 0.2.
+ */
+public class DuplicateDetector {
+
+	// 2^31 - 1, the modulus of the hash functions
+	private static final long PRIME = 2147483647L;
+
+	private final int K;
+	private final int bands;
+	private final int rows;
+	private final double minOverlap;
+
+	// the hash functions (a * element + b) mod PRIME
+	private final long[] a;
+	private final long[] b;
+
+	// per band the images by the hash of their band
+	private final List<Map<Long, List<Integer>>> buckets;
+	private final List<int[]> histograms = new ArrayList<int[]>();
+	private final List<String> names = new ArrayList<String>();
+
+	/**
+	 * @param minOverlap
+	 *            the histogram overlap from which images are duplicates
+	 */
+	public DuplicateDetector(int K, int bands, int rows, double minOverlap,
+			long seed) {
+		this.K = K;
+		this.bands = bands;
+		this.rows = rows;
+		this.minOverlap = minOverlap;
+
+		Random random = new Random(seed);
+		a = new long[bands * rows];
+		b = new long[bands * rows];
+		for (int i = 0; i < a.length; i++) {
+			a[i] = 1 + (long) (random.nextDouble() * (PRIME - 1));
+			b[i] = (long) (random.nextDouble() * PRIME);
+		}
+
+		buckets = new ArrayList<Map<Long, List<Integer>>>(bands);
+		for (int band = 0; band < bands; band++) {
+			buckets.add(new HashMap<Long, List<Integer>>());
+		}
+	}
+
+	public int size() {
+		return names.size();
+	}
+
+	public String getName(int image) {
+		return names.get(image);
+	}
+
+	/**
+	 * @return the MinHash signature of the visual word occurrences of the
+	 *         histogram
+	 */
+	public long[] signature(int[] histogram) {
+		long[] signature = new long[a.length];
+		Arrays.fill(signature, Long.MAX_VALUE);
+		for (int word = 0; word < histogram.length; word++) {
+			for (int n = 0; n < histogram[word]; n++) {
+				long element = word + (long) K * n;
+				for (int i = 0; i < signature.length; i++) {
+					long hash = (a[i] * element + b[i]) % PRIME;
+					if (hash < signature[i]) {
+						signature[i] = hash;
+					}
+				}
+			}
+		}
+		return signature;
+	}
+
+	/**
+	 * Indexes an image.
+	 *
+	 * @return the index of the image
+	 */
+	public int add(String name, int[] histogram) {
+		return add(name, histogram, signature(histogram));
+	}
+
+	private int add(String name, int[] histogram, long[] signature) {
+		int image = names.size();
+		for (int band = 0; band < bands; band++) {
+			Map<Long, List<Integer>> bucket = buckets.get(band);
+			Long key = bandHash(signature, band);
+			List<Integer> images = bucket.get(key);
+			if (images == null) {
+				images = new ArrayList<Integer>(2);
+				bucket.put(key, images);
+			}
+			images.add(image);
+		}
+		histograms.add(histogram);
+		names.add(name);
+		return image;
+	}
+
+	/**
+	 * @return the indexed images whose histogram overlap with the histogram is
+	 *         at least minOverlap, in index order
+	 */
+	public List<Integer> duplicates(int[] histogram) {
+		return duplicates(histogram, signature(histogram));
+	}
+
+	private List<Integer> duplicates(int[] histogram, long[] signature) {
+		Set<Integer> candidates = new HashSet<Integer>();
+		List<Integer> duplicates = new ArrayList<Integer>();
+		for (int band = 0; band < bands; band++) {
+			List<Integer> images = buckets.get(band).get(
+					bandHash(signature, band));
+			if (images == null) {
+				continue;
+			}
+			for (int image : images) {
+				if (candidates.add(image)) {
+					if (overlap(histogram, histograms.get(image)) >= minOverlap) {
+						duplicates.add(image);
+					}
+				}
+			}
+		}
+		Collections.sort(duplicates);
+		return duplicates;
+	}
+
+	/**
+	 * Checks an incoming image against the indexed images and indexes it.
+	 *
+	 * @return the indexed images it duplicates
+	 */
+	public List<Integer> check(String name, int[] histogram) {
+		long[] signature = signature(histogram);
+		List<Integer> duplicates = duplicates(histogram, signature);
+		add(name, histogram, signature);
+		return duplicates;
+	}
+
+	/**
+	 * @return sum(min) / sum(max) of the two histograms
+	 */
+	public static double overlap(int[] h1, int[] h2) {
+		long min = 0, max = 0;
+		for (int i = 0; i < h1.length; i++) {
+			min += Math.min(h1[i], h2[i]);
+			max += Math.max(h1[i], h2[i]);
+		}
+		return max == 0 ? 1 : (double) min / max;
+	}
+
+	private long bandHash(long[] signature, int band) {
+		long hash = band;
+		for (int i = band * rows; i < (band + 1) * rows; i++) {
+			hash = hash * 0x9e3779b97f4a7c15L + signature[i];
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,61 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Vector;
+
+import mpi.cbg.fly.Feature;
+import mpi.cbg.fly.FloatArray2DSIFT;
+import mpi.cbg.fly.FloatArray2DScaleOctave;
+
+/**
+ * Limits the features of an image to a budget, which bounds the quantization
+ * cost and memory per image.
+ *
+ * The features of largest scale are kept: they are the most stable under
+ * resizing and blur, and the DoG detector finds them in its coarse octaves,
+ * which are the cheapest. The DoG response of a feature is not exposed by
+ * FloatArray2DSIFT, so contrast cannot be used.
+ */
+public final class FeatureBudget {
+
+	// largest scale first, also ranks the features DescriptorSampler takes
+	static final Comparator<Feature> BY_SCALE = new Comparator<Feature>() {
+		@Override
+		public int compare(Feature a, Feature b) {
+			return Float.compare(b.scale, a.scale);
+		}
+	};
+
+	private FeatureBudget() {
+	}
+
+	/**
+	 * @return the max features of largest scale, the features themselves if
+	 *         there are not more
+	 */
+	public static Vector<Feature> select(Vector<Feature> features, int max) {
+		if (features.size() <= max) {
+			return features;
+		}
+		Feature[] ranked = features.toArray(new Feature[features.size()]);
+		Arrays.sort(ranked, BY_SCALE);
+		return new Vector<Feature>(Arrays.asList(ranked).subList(0, max));
+	}
+
+	/**
+	 * Runs the octaves of an initialized FloatArray2DSIFT like run(maxSize), but
+	 * from the coarsest to the finest, and skips the remaining finer octaves once
+	 * max features are found.
+	 *
+	 * @return at most max features of largest scale
+	 */
+	public static Vector<Feature> run(FloatArray2DSIFT sift, int maxSize, int max) {
+		Vector<Feature> features = new Vector<Feature>();
+		FloatArray2DScaleOctave[] octaves = sift.getOctaves();
+		for (int o = octaves.length - 1; o >= 0 && features.size() < max; o--) {
+			if (octaves[o].width <= maxSize && octaves[o].height <= maxSize) {
+				features.addAll(sift.runOctave(o));
+			}
+		}
+		return select(features, max);
+	}
+}
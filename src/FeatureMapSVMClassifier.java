@@ -0,0 +1,233 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Vector;
+
+import libsvm.svm;
+import libsvm.svm_model;
+import libsvm.svm_node;
+import libsvm.svm_parameter;
+import libsvm.svm_print_interface;
+import libsvm.svm_problem;
+
+/**
+ * A linear SVM on explicitly mapped histograms. With a chi2 or intersection
+ * AdditiveKernelMap it approximates the corresponding kernel SVM, but prediction
+ * is a single dot product with the collapsed weight vector instead of a kernel
+ * evaluation against every support vector.
+ */
+public class FeatureMapSVMClassifier implements IClassifier {
+
+	private static final boolean ESTIMATE_PARAMETERS = true;
+	private static final boolean PRINT_SVM_INFO = false;
+
+	private AdditiveKernelMap map;
+	private String[] classNames;
+
+	private double[] weights;
+	private double bias;
+	private double C = 1;
+
+	public FeatureMapSVMClassifier(int features) {
+		this(new AdditiveKernelMap(AdditiveKernelMap.Kernel.CHI2, 2, 0.5, features));
+	}
+
+	public FeatureMapSVMClassifier(AdditiveKernelMap map) {
+		this.map = map;
+		svm.svm_set_print_string_function(new svm_print_interface() {
+			@Override
+			public void print(String toPrint) {
+				if(PRINT_SVM_INFO) {
+					System.out.println(toPrint);
+				}
+			}
+		});
+	}
+
+	@Override
+	public String classify(int[] histogram) {
+		return classNames[classIndex(decisionValue(histogram))];
+	}
+
+	// the length of the collapsed weight vector a histogram is mapped onto
+	public int getWeightCount() {
+		return weights.length;
+	}
+
+	@Override
+	public String[] getClassNames() {
+		return classNames;
+	}
+
+	@Override
+	public void classify(final int[][] histograms, final int[] classIndices,
+			final double[] scores) {
+		ParallelBatch.run(histograms.length, new ParallelBatch.Range() {
+			@Override
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					final double decision = decisionValue(histograms[i]);
+					classIndices[i] = classIndex(decision);
+					scores[2 * i] = decision;
+					scores[2 * i + 1] = -decision;
+				}
+			}
+		});
+	}
+
+	@Override
+	public void save(DataOutputStream out, long vocabularyId) throws IOException {
+		ModelIO.writeHeader(out, "FeatureMapSVMClassifier", vocabularyId);
+		out.writeUTF(map.getKernel().name());
+		out.writeInt(map.getOrder());
+		out.writeDouble(map.getPeriod());
+		out.writeInt(map.getBins());
+		ModelIO.writeStrings(out, classNames);
+		out.writeDouble(C);
+		out.writeDouble(bias);
+		ModelIO.writeDoubles(out, weights);
+	}
+
+	/**
+	 * Loads a saved model including the feature map it was trained with.
+	 */
+	@Override
+	public void load(DataInputStream in, long vocabularyId) throws IOException {
+		ModelIO.readHeader(in, "FeatureMapSVMClassifier", vocabularyId);
+		map = new AdditiveKernelMap(AdditiveKernelMap.Kernel.valueOf(in.readUTF()),
+				in.readInt(), in.readDouble(), in.readInt());
+		classNames = ModelIO.readStrings(in);
+		C = in.readDouble();
+		bias = in.readDouble();
+		weights = ModelIO.readDoubles(in);
+		if (weights.length != map.dimension()) {
+			throw new IOException("Corrupt model: weights do not match the feature map");
+		}
+	}
+
+	private double decisionValue(int[] histogram) {
+		return map.dot(weights, histogram) + bias;
+	}
+
+	private int classIndex(double decision) {
+		return decision > 0 ? 0 : 1;
+	}
+
+	@Override
+	public void learn(Map<String, Vector<int[]>> dataSet) {
+		if(dataSet.size() != 2) throw new IllegalArgumentException("This SVM implementation only supports binary classification");
+
+		classNames = new String[dataSet.size()];
+
+		List<double[]> mapped = new ArrayList<>();
+		List<Double> labels = new ArrayList<>();
+		int classId = 0;
+		for (Entry<String, Vector<int[]>> entry : dataSet.entrySet()) {
+			classNames[classId] = entry.getKey();
+			for (int[] histogram : entry.getValue()) {
+				double[] vector = new double[map.dimension()];
+				map.map(histogram, vector);
+				mapped.add(vector);
+				labels.add((double) classId);
+			}
+			classId++;
+		}
+
+		svm_problem prob = createLibSVMProblem(mapped, labels);
+		svm_parameter param = getDefaultParameters();
+
+		if (ESTIMATE_PARAMETERS) {
+			param.C = new SVMGridSearch().estimateParameters(prob, param)[0];
+			this.C = param.C;
+			System.out.println("C : " + param.C);
+		} else {
+			param.C = this.C;
+		}
+
+		collapse(svm.svm_train(prob, param));
+	}
+
+	/*
+	 * For a linear kernel the decision function sum_i coef_i (sv_i . x) - rho
+	 * equals w . x - rho with w = sum_i coef_i sv_i. The weights are oriented so
+	 * that a positive decision value means classNames[0].
+	 */
+	private void collapse(svm_model model) {
+		weights = new double[map.dimension()];
+		for (int i = 0; i < model.l; i++) {
+			final double coef = model.sv_coef[0][i];
+			for (svm_node node : model.SV[i]) {
+				weights[node.index] += coef * node.value;
+			}
+		}
+		bias = -model.rho[0];
+
+		if (model.label[0] != 0) {
+			for (int i = 0; i < weights.length; i++) {
+				weights[i] = -weights[i];
+			}
+			bias = -bias;
+		}
+	}
+
+	private svm_problem createLibSVMProblem(List<double[]> mapped, List<Double> labels) {
+		svm_problem prob = new svm_problem();
+		prob.l = mapped.size();
+		prob.y = new double[prob.l];
+		prob.x = new svm_node[prob.l][];
+
+		for (int i = 0; i < prob.l; i++) {
+			prob.y[i] = labels.get(i);
+			prob.x[i] = toSVMNode(mapped.get(i));
+		}
+		return prob;
+	}
+
+	/*
+	 * Mapped histograms are sparse, zero entries are left out.
+	 */
+	private svm_node[] toSVMNode(double[] vector) {
+		int nonZero = 0;
+		for (double value : vector) {
+			if (value != 0) nonZero++;
+		}
+
+		svm_node[] node = new svm_node[nonZero];
+		int n = 0;
+		for (int i = 0; i < vector.length; i++) {
+			if (vector[i] != 0) {
+				node[n] = new svm_node();
+				node[n].index = i;
+				node[n].value = vector[i];
+				n++;
+			}
+		}
+		return node;
+	}
+
+	private svm_parameter getDefaultParameters() {
+		svm_parameter param = new svm_parameter();
+
+		param.svm_type = svm_parameter.C_SVC;
+		param.kernel_type = svm_parameter.LINEAR;
+		param.degree = 3;
+		param.gamma = 0;
+		param.coef0 = 0;
+		param.nu = 0.5;
+		param.cache_size = 100;
+		param.C = 1;
+		param.eps = 1e-3;
+		param.p = 0.1;
+		param.shrinking = 1;
+		param.probability = 0;
+		param.nr_weight = 0;
+		param.weight_label = new int[0];
+		param.weight = new double[0];
+
+		return param;
+	}
+}
@@ -0,0 +1,16 @@
+import java.util.List;
+
+import mpi.cbg.fly.Feature;
+
+/**
+ * Receives the features of each image as soon as they are calculated, e.g. to
+ * sample or store them without holding the features of all images.
+ */
+public interface FeatureSink {
+
+	/**
+	 * Offers the features of an image, identified by a stable name such as its
+	 * file name. Called from several threads.
+	 */
+	void offer(String image, List<Feature> features);
+}
@@ -0,0 +1,154 @@
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Emits the durations recorded by a Metrics timer as Java Flight Recorder
+ * events, one event type per timer, so a recording shows the pipeline stages
+ * next to the GC, allocation and lock events of the JVM.
+ *
+ * The sources target Java 7, which has no jdk.jfr, so the event types are
+ * defined at runtime through jdk.jfr.EventFactory, called by reflection. An
+ * event type is named "cbir." followed by the timer name and has the category
+ * CBIR and one field, the elapsed time. Its events are committed when the stage
+ * ends. On a JVM without JFR, or if the event types cannot be defined, forTimer
+ * returns null and the timers only count.
+ */
+final class FlightRecorderEvents {
+
+	private static final Method CREATE;
+	private static final Method GET_EVENT_TYPE;
+	// the calls per event as handles, which the JIT compiles like direct calls
+	private static final MethodHandle IS_ENABLED;
+	private static final MethodHandle NEW_EVENT;
+	private static final MethodHandle SET;
+	private static final MethodHandle COMMIT;
+	private static final Constructor<?> ANNOTATION_ELEMENT;
+	private static final Constructor<?> VALUE_DESCRIPTOR;
+	private static final Class<? extends Annotation> NAME;
+	private static final Class<? extends Annotation> LABEL;
+	private static final Class<? extends Annotation> CATEGORY;
+	private static final Class<? extends Annotation> TIMESPAN;
+	private static final Class<? extends Annotation> STACK_TRACE;
+
+	static {
+		Method create = null, getEventType = null;
+		MethodHandle isEnabled = null, newEvent = null, set = null, commit = null;
+		Constructor<?> annotationElement = null, valueDescriptor = null;
+		Class<? extends Annotation> name = null, label = null, category = null;
+		Class<? extends Annotation> timespan = null, stackTrace = null;
+		try {
+			Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			create = factory.getMethod("create", List.class, List.class);
+			getEventType = factory.getMethod("getEventType");
+			isEnabled = handle(Class.forName("jdk.jfr.EventType").getMethod(
+					"isEnabled"), MethodType.methodType(boolean.class, Object.class));
+			newEvent = handle(factory.getMethod("newEvent"),
+					MethodType.methodType(Object.class, Object.class));
+			set = handle(event.getMethod("set", int.class, Object.class),
+					MethodType.methodType(void.class, Object.class, int.class,
+							Object.class));
+			commit = handle(event.getMethod("commit"),
+					MethodType.methodType(void.class, Object.class));
+			annotationElement = Class.forName("jdk.jfr.AnnotationElement")
+					.getConstructor(Class.class, Object.class);
+			valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor")
+					.getConstructor(Class.class, String.class, List.class);
+			name = annotation("jdk.jfr.Name");
+			label = annotation("jdk.jfr.Label");
+			category = annotation("jdk.jfr.Category");
+			timespan = annotation("jdk.jfr.Timespan");
+			stackTrace = annotation("jdk.jfr.StackTrace");
+		} catch (ReflectiveOperationException e) {
+			create = null;
+		}
+		CREATE = create;
+		GET_EVENT_TYPE = getEventType;
+		IS_ENABLED = isEnabled;
+		NEW_EVENT = newEvent;
+		SET = set;
+		COMMIT = commit;
+		ANNOTATION_ELEMENT = annotationElement;
+		VALUE_DESCRIPTOR = valueDescriptor;
+		NAME = name;
+		LABEL = label;
+		CATEGORY = category;
+		TIMESPAN = timespan;
+		STACK_TRACE = stackTrace;
+	}
+
+	// the jdk.jfr.EventFactory of the event type and its jdk.jfr.EventType
+	private final Object factory;
+	private final Object type;
+
+	private FlightRecorderEvents(Object factory)
+			throws ReflectiveOperationException {
+		this.factory = factory;
+		this.type = GET_EVENT_TYPE.invoke(factory);
+	}
+
+	/*
+	 * The method as a handle of the given type, which has Object in place of
+	 * the JFR types, so it can be invoked exactly without them.
+	 */
+	private static MethodHandle handle(Method method, MethodType type)
+			throws IllegalAccessException {
+		return MethodHandles.publicLookup().unreflect(method).asType(type);
+	}
+
+	private static Class<? extends Annotation> annotation(String name)
+			throws ClassNotFoundException {
+		return Class.forName(name).asSubclass(Annotation.class);
+	}
+
+	/**
+	 * @return the events of the timer, null if Flight Recorder is not available
+	 */
+	static FlightRecorderEvents forTimer(String timer) {
+		if (CREATE == null) {
+			return null;
+		}
+		try {
+			List<Object> annotations = Arrays.asList(
+					ANNOTATION_ELEMENT.newInstance(NAME, "cbir." + timer),
+					ANNOTATION_ELEMENT.newInstance(LABEL, "CBIR " + timer),
+					ANNOTATION_ELEMENT.newInstance(CATEGORY,
+							new String[] { "CBIR" }),
+					ANNOTATION_ELEMENT.newInstance(STACK_TRACE, false));
+			List<Object> elapsed = Arrays.asList(
+					ANNOTATION_ELEMENT.newInstance(LABEL, "Elapsed"),
+					ANNOTATION_ELEMENT.newInstance(TIMESPAN, "NANOSECONDS"));
+			List<Object> fields = Collections.singletonList(VALUE_DESCRIPTOR
+					.newInstance(long.class, "elapsed", elapsed));
+			return new FlightRecorderEvents(CREATE.invoke(null, annotations,
+					fields));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Commits an event with the elapsed time, if the event type is enabled in a
+	 * running recording.
+	 */
+	void emit(long nanos) {
+		try {
+			if ((boolean) IS_ENABLED.invokeExact(type)) {
+				Object event = NEW_EVENT.invokeExact(factory);
+				SET.invokeExact(event, 0, (Object) nanos);
+				COMMIT.invokeExact(event);
+			}
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			// the timer has counted the duration, a lost event is harmless
+		}
+	}
+}
@@ -0,0 +1,137 @@
+import java.util.Arrays;
+import java.util.Random;
+
+import mpi.cbg.fly.Feature;
+
+import Jama.Matrix;
+
+/**
+ * Hamming embedding of SIFT descriptors after Jegou et al. ("Hamming embedding
+ * and weak geometric consistency for large scale image search").
+ *
+ * Besides its visual word, each descriptor gets a 64 bit signature: bit b is set
+ * if the descriptor projected on the b-th row of a random orthogonal projection
+ * is above the median of that projection over the training descriptors of the
+ * same word. Two descriptors of the same word match if their signatures differ
+ * in few bits, which refines a coarse vocabulary at the cost of one popcount.
+ * Descriptors of fewer than 64 dimensions, e.g. after a PCA projection, are
+ * projected on random unit directions instead, which cannot all be orthogonal.
+ */
+public class HammingEmbedding {
+
+	public static final int BITS = 64;
+
+	// BITS x descriptor length, orthonormal rows if the descriptors have at
+	// least BITS dimensions, else random unit rows
+	private final float[][] projection;
+	// per visual word the median of each projected component
+	private final float[][] medians;
+
+	private HammingEmbedding(float[][] projection, float[][] medians) {
+		this.projection = projection;
+		this.medians = medians;
+	}
+
+	/**
+	 * Learns the per word medians from training descriptors and the visual word
+	 * each of them is assigned to.
+	 */
+	public static HammingEmbedding learn(Feature[] features, int[] words,
+			int K, long seed) {
+		final int d = features[0].descriptor.length;
+
+		Random random = new Random(seed);
+		float[][] projection = new float[BITS][d];
+		if (d >= BITS) {
+			// the Q of a QR decomposition of a gaussian matrix is a random rotation
+			double[][] gaussian = new double[d][d];
+			for (double[] row : gaussian) {
+				for (int j = 0; j < d; j++) {
+					row[j] = random.nextGaussian();
+				}
+			}
+			double[][] q = new Matrix(gaussian).qr().getQ().getArray();
+			for (int b = 0; b < BITS; b++) {
+				for (int j = 0; j < d; j++) {
+					projection[b][j] = (float) q[j][b];
+				}
+			}
+		} else {
+			// there are no BITS orthonormal directions in fewer dimensions
+			for (int b = 0; b < BITS; b++) {
+				double norm = 0;
+				for (int j = 0; j < d; j++) {
+					double value = random.nextGaussian();
+					projection[b][j] = (float) value;
+					norm += value * value;
+				}
+				for (int j = 0; j < d; j++) {
+					projection[b][j] /= (float) Math.sqrt(norm);
+				}
+			}
+		}
+
+		// group the descriptors by word and take the median of each component
+		int[] counts = new int[K + 1];
+		for (int word : words) {
+			counts[word + 1]++;
+		}
+		for (int word = 0; word < K; word++) {
+			counts[word + 1] += counts[word];
+		}
+		int[] byWord = new int[features.length];
+		int[] next = Arrays.copyOf(counts, K);
+		for (int i = 0; i < features.length; i++) {
+			byWord[next[words[i]]++] = i;
+		}
+
+		float[][] medians = new float[K][BITS];
+		for (int word = 0; word < K; word++) {
+			final int from = counts[word], n = counts[word + 1] - from;
+			if (n == 0) {
+				continue;
+			}
+			float[] values = new float[n];
+			for (int b = 0; b < BITS; b++) {
+				for (int i = 0; i < n; i++) {
+					values[i] = dot(projection[b],
+							features[byWord[from + i]].descriptor);
+				}
+				Arrays.sort(values);
+				medians[word][b] = (n & 1) == 1 ? values[n / 2]
+						: (values[n / 2 - 1] + values[n / 2]) / 2;
+			}
+		}
+
+		return new HammingEmbedding(projection, medians);
+	}
+
+	/**
+	 * @return the signature of a descriptor assigned to the visual word
+	 */
+	public long signature(float[] descriptor, int word) {
+		final float[] median = medians[word];
+		long signature = 0;
+		for (int b = 0; b < BITS; b++) {
+			if (dot(projection[b], descriptor) > median[b]) {
+				signature |= 1L << b;
+			}
+		}
+		return signature;
+	}
+
+	/**
+	 * @return the number of differing bits of two signatures
+	 */
+	public static int distance(long a, long b) {
+		return Long.bitCount(a ^ b);
+	}
+
+	private static float dot(float[] a, float[] b) {
+		float sum = 0;
+		for (int j = 0; j < a.length; j++) {
+			sum += a[j] * b[j];
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,117 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An inverted file of Hamming embedded features: per visual word the images and
+ * signatures of the indexed features, in contiguous arrays.
+ *
+ * A query feature is only compared with the indexed features of its own word,
+ * and counts as a match for an image if the signatures differ in at most
+ * threshold bits.
+ */
+public class HammingIndex {
+
+	private final int threshold;
+
+	private final int[][] images;
+	private final long[][] signatures;
+	private final int[] sizes;
+
+	private final List<String> labels = new ArrayList<String>();
+	private final List<Integer> featureCounts = new ArrayList<Integer>();
+
+	public HammingIndex(int K, int threshold) {
+		this.threshold = threshold;
+		this.images = new int[K][0];
+		this.signatures = new long[K][0];
+		this.sizes = new int[K];
+	}
+
+	public int size() {
+		return labels.size();
+	}
+
+	/**
+	 * Adds the features of an image, given by their visual words and signatures.
+	 *
+	 * @return the index of the image
+	 */
+	public int add(int[] words, long[] featureSignatures, String label) {
+		final int image = labels.size();
+		for (int i = 0; i < words.length; i++) {
+			final int word = words[i];
+			final int size = sizes[word];
+			if (size == images[word].length) {
+				images[word] = Arrays.copyOf(images[word], Math.max(8, 2 * size));
+				signatures[word] = Arrays.copyOf(signatures[word], images[word].length);
+			}
+			images[word][size] = image;
+			signatures[word][size] = featureSignatures[i];
+			sizes[word]++;
+		}
+		labels.add(label);
+		featureCounts.add(words.length);
+		return image;
+	}
+
+	/**
+	 * Writes the similarity of the query to each indexed image to scores: the
+	 * number of matching features, normalized by the square root of the feature
+	 * count of the image so large images are not preferred.
+	 */
+	public void score(int[] words, long[] querySignatures, float[] scores) {
+		Arrays.fill(scores, 0, labels.size(), 0);
+		for (int i = 0; i < words.length; i++) {
+			final int word = words[i];
+			final long signature = querySignatures[i];
+			final int[] wordImages = images[word];
+			final long[] wordSignatures = signatures[word];
+			for (int j = 0; j < sizes[word]; j++) {
+				if (Long.bitCount(signature ^ wordSignatures[j]) <= threshold) {
+					scores[wordImages[j]]++;
+				}
+			}
+		}
+		for (int image = 0; image < labels.size(); image++) {
+			scores[image] /= (float) Math.sqrt(Math.max(1, featureCounts.get(image)));
+		}
+	}
+
+	/**
+	 * @return the most frequent label among the k most similar images
+	 */
+	public String classify(int[] words, long[] querySignatures, int k) {
+		final float[] scores = new float[labels.size()];
+		score(words, querySignatures, scores);
+
+		Integer[] order = new Integer[scores.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Float.compare(scores[b], scores[a]);
+			}
+		});
+
+		String best = null;
+		int bestVotes = 0;
+		final int n = Math.min(k, order.length);
+		for (int i = 0; i < n; i++) {
+			int votes = 0;
+			for (int j = 0; j < n; j++) {
+				if (labels.get(order[j]).equals(labels.get(order[i]))) {
+					votes++;
+				}
+			}
+			if (votes > bestVotes) {
+				bestVotes = votes;
+				best = labels.get(order[i]);
+			}
+		}
+		return best;
+	}
+}
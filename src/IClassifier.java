@@ -1,10 +1,24 @@
-
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Map;
 import java.util.Vector;
 
 
 public interface IClassifier {
-	
+
 	public String classify(int[] histogram);
 	public void learn(Map<String,Vector<int[]>> dataSet);
+
+	//the class names known after learning, indexed by class index
+	public String[] getClassNames();
+
+	//classifies many histograms at once: classIndices[i] is the class index of histograms[i],
+	//scores[i * getClassNames().length + c] its score for class c (higher is more likely)
+	public void classify(int[][] histograms, int[] classIndices, double[] scores);
+
+	//persists the learned model, tagged with the vocabulary it was learned on (see ModelIO)
+	public void save(DataOutputStream out, long vocabularyId) throws IOException;
+	//replaces the model by a saved one, fails if it belongs to another vocabulary
+	public void load(DataInputStream in, long vocabularyId) throws IOException;
 }
@@ -6,6 +6,9 @@ import mpi.cbg.fly.Feature;
 
 public class IgsImage {
 	
+	//the name of the image file
+	String fileName;
+	
 	//the true image class known by the filename
 	String className;
 	
@@ -18,6 +21,13 @@ public class IgsImage {
 	//all SIFT feature found in the image
 	Vector<Feature> features;
 	
+	//the visual word of each feature and the VisualWordHistogram, if quantized
+	int[] words;
+	int[] histogram;
+	
+	//the Hamming signature of each feature, if embedded
+	long[] signatures;
+	
 	//is className = classifiedName?
 	boolean isClassificationCorect() {
 		return className!=null && classifiedName !=null && className.equals(classifiedName);
@@ -0,0 +1,125 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import libsvm.svm_node;
+
+/**
+ * The histogram intersection kernel k(x,y) = sum_i min(x_i, y_i) of a set of
+ * training histograms, computed once as a full matrix.
+ *
+ * The matrix is computed in square tiles, so the rows of both tiles stay in cache
+ * while all their pairs are evaluated. Only tiles on and above the diagonal are
+ * computed and mirrored, and the tiles are distributed over a fixed thread pool.
+ */
+public class IntersectionKernelMatrix {
+
+	// rows per tile, two tiles of K=1000 histograms fit into L2
+	private static final int TILE = 32;
+
+	private IntersectionKernelMatrix() {
+	}
+
+	public static double intersection(double[] x, double[] y) {
+		double sum = 0;
+		for (int i = 0; i < x.length; i++) {
+			sum += Math.min(x[i], y[i]);
+		}
+		return sum;
+	}
+
+	public static double[][] compute(final double[][] histograms)
+			throws InterruptedException {
+		final int n = histograms.length;
+		final double[][] kernel = new double[n][n];
+
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime()
+				.availableProcessors());
+		try {
+			List<Future<?>> tiles = new ArrayList<Future<?>>();
+			for (int rowTile = 0; rowTile < n; rowTile += TILE) {
+				for (int colTile = rowTile; colTile < n; colTile += TILE) {
+					tiles.add(pool.submit(new TileRunnable(histograms, kernel,
+							rowTile, colTile)));
+				}
+			}
+
+			// a failed tile leaves its part of the matrix empty
+			for (Future<?> tile : tiles) {
+				try {
+					tile.get();
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("Kernel tile failed",
+							e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		return kernel;
+	}
+
+	/**
+	 * Wraps the kernel matrix into libsvm PRECOMPUTED rows: node 0 holds the
+	 * 1-based serial number of the vector, node j holds k(i, j-1).
+	 *
+	 * Since the serial number refers to a column of the full matrix, any subset of
+	 * these rows (e.g. a cross validation fold) is again a valid problem.
+	 *
+	 * The rows hold n*(n+1) svm_node objects of about 28 bytes each with their
+	 * references, so with the matrix itself n histograms take about 36*n*n bytes:
+	 * 320MB for 3000, the most SVMClassifier trains the kernel on.
+	 */
+	public static svm_node[][] toPrecomputedNodes(double[][] kernel) {
+		final int n = kernel.length;
+		svm_node[][] rows = new svm_node[n][n + 1];
+
+		for (int i = 0; i < n; i++) {
+			rows[i][0] = new svm_node();
+			rows[i][0].index = 0;
+			rows[i][0].value = i + 1;
+			for (int j = 0; j < n; j++) {
+				rows[i][j + 1] = new svm_node();
+				rows[i][j + 1].index = j + 1;
+				rows[i][j + 1].value = kernel[i][j];
+			}
+		}
+		return rows;
+	}
+
+	private static class TileRunnable implements Runnable {
+
+		double[][] histograms;
+		double[][] kernel;
+		int rowTile;
+		int colTile;
+
+		public TileRunnable(double[][] histograms, double[][] kernel,
+				int rowTile, int colTile) {
+			this.histograms = histograms;
+			this.kernel = kernel;
+			this.rowTile = rowTile;
+			this.colTile = colTile;
+		}
+
+		@Override
+		public void run() {
+			final int rowEnd = Math.min(rowTile + TILE, histograms.length);
+			final int colEnd = Math.min(colTile + TILE, histograms.length);
+
+			for (int i = rowTile; i < rowEnd; i++) {
+				// on diagonal tiles only the upper triangle is computed
+				for (int j = Math.max(colTile, i); j < colEnd; j++) {
+					final double value = intersection(histograms[i], histograms[j]);
+					kernel[i][j] = value;
+					kernel[j][i] = value;
+				}
+			}
+		}
+	}
+
+}
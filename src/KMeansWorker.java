@@ -0,0 +1,123 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * A worker process of ShardedKMeans: loads one shard of descriptors and, for
+ * every set of centroids the coordinator sends, assigns its descriptors to the
+ * nearest centroid and sends back the per centroid counts and descriptor sums
+ * and the summed squared distances.
+ *
+ * Usage: java KMeansWorker host port
+ */
+public class KMeansWorker {
+
+	private final int dimension;
+	private final int count;
+	// count x dimension, row major
+	private final float[] descriptors;
+
+	public KMeansWorker(File shard) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(shard)))) {
+			if (shard.length() == 0) {
+				dimension = 0;
+				count = 0;
+				descriptors = new float[0];
+				return;
+			}
+			dimension = in.readInt();
+			count = (int) ((shard.length() - 4) / 4 / dimension);
+			descriptors = new float[count * dimension];
+			for (int i = 0; i < descriptors.length; i++) {
+				descriptors[i] = in.readFloat();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					socket.getOutputStream()));
+
+			KMeansWorker worker = new KMeansWorker(new File(in.readUTF()));
+			out.writeInt(worker.count);
+			out.writeInt(worker.dimension);
+			out.flush();
+
+			worker.serve(in, out);
+		}
+	}
+
+	/*
+	 * Answers iterations until the coordinator sends zero centroids.
+	 */
+	private void serve(DataInputStream in, DataOutputStream out)
+			throws IOException {
+		for (int K = in.readInt(); K > 0; K = in.readInt()) {
+			final int d = in.readInt();
+			float[] centroids = new float[K * d];
+			for (int i = 0; i < centroids.length; i++) {
+				centroids[i] = in.readFloat();
+			}
+
+			int[] counts = new int[K];
+			double[] sums = new double[K * d];
+			double distortion = assign(centroids, K, counts, sums);
+
+			for (int c = 0; c < K; c++) {
+				out.writeInt(counts[c]);
+			}
+			for (double sum : sums) {
+				out.writeDouble(sum);
+			}
+			out.writeDouble(distortion);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Assigns every descriptor to its nearest centroid and accumulates the
+	 * counts and sums of each centroid.
+	 *
+	 * @return the summed squared distances to the nearest centroids
+	 */
+	double assign(float[] centroids, int K, int[] counts, double[] sums) {
+		double distortion = 0;
+		for (int i = 0; i < count; i++) {
+			final int offset = i * dimension;
+
+			int nearest = 0;
+			float minDistance = Float.MAX_VALUE;
+			for (int c = 0; c < K; c++) {
+				final int centroid = c * dimension;
+				float distance = 0;
+				for (int j = 0; j < dimension && distance < minDistance; j++) {
+					final float diff = descriptors[offset + j]
+							- centroids[centroid + j];
+					distance += diff * diff;
+				}
+				if (distance < minDistance) {
+					minDistance = distance;
+					nearest = c;
+				}
+			}
+
+			counts[nearest]++;
+			final int sum = nearest * dimension;
+			for (int j = 0; j < dimension; j++) {
+				sums[sum + j] += descriptors[offset + j];
+			}
+			distortion += minDistance;
+		}
+		return distortion;
+	}
+}
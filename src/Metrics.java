@@ -0,0 +1,209 @@
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process registry of the pipeline metrics: latency histograms of the stages,
+ * throughput counters and gauges such as queue depths.
+ *
+ * Recording is lock free and cheap enough for every image and every feature. The
+ * registry is read with snapshot(), a text table of all metrics, which
+ * startReporting prints periodically.
+ */
+public final class Metrics {
+
+	private static final Map<String, Timer> TIMERS = new TreeMap<String, Timer>();
+	private static final Map<String, Counter> COUNTERS = new TreeMap<String, Counter>();
+	private static final Map<String, Gauge> GAUGES = new TreeMap<String, Gauge>();
+
+	private static final long START = System.nanoTime();
+
+	// also emit the timer durations as Flight Recorder events, which a
+	// recording started with -XX:StartFlightRecording shows as cbir.<timer>
+	private static final boolean FLIGHT_RECORDER = true;
+
+	private static ScheduledExecutorService reporter;
+
+	private Metrics() {
+	}
+
+	/**
+	 * A latency histogram with power of two buckets, bucket i counts the
+	 * durations in [2^i, 2^(i+1)) microseconds.
+	 */
+	public static final class Timer {
+		private static final int BUCKETS = 40;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		// null if the durations are not emitted to Flight Recorder
+		private final FlightRecorderEvents events;
+
+		private Timer(String name) {
+			events = FLIGHT_RECORDER ? FlightRecorderEvents.forTimer(name) : null;
+		}
+
+		/**
+		 * Records the time since start, a System.nanoTime() value.
+		 */
+		public void stop(long start) {
+			record(System.nanoTime() - start);
+		}
+
+		public void record(long nanos) {
+			long micros = Math.max(1, nanos / 1000);
+			int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+			buckets.incrementAndGet(bucket);
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+
+			if (events != null) {
+				events.emit(nanos);
+			}
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		/**
+		 * @return the upper bound in milliseconds of the bucket holding the
+		 *         quantile q of the recorded durations
+		 */
+		public double quantile(double q) {
+			long rank = (long) Math.ceil(q * count.get());
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank && seen > 0) {
+					return Math.min((1L << (i + 1)) / 1000.0, maxNanos.get() / 1e6);
+				}
+			}
+			return maxNanos.get() / 1e6;
+		}
+	}
+
+	public static final class Counter {
+		private final AtomicLong value = new AtomicLong();
+
+		private Counter() {
+		}
+
+		public void add(long n) {
+			value.addAndGet(n);
+		}
+
+		public long get() {
+			return value.get();
+		}
+	}
+
+	/**
+	 * A value sampled when a snapshot is taken, e.g. the length of a work queue.
+	 */
+	public interface Gauge {
+		long value();
+	}
+
+	public static synchronized Timer timer(String name) {
+		Timer timer = TIMERS.get(name);
+		if (timer == null) {
+			timer = new Timer(name);
+			TIMERS.put(name, timer);
+		}
+		return timer;
+	}
+
+	public static synchronized Counter counter(String name) {
+		Counter counter = COUNTERS.get(name);
+		if (counter == null) {
+			counter = new Counter();
+			COUNTERS.put(name, counter);
+		}
+		return counter;
+	}
+
+	/**
+	 * Registers a gauge, replacing an earlier gauge of the same name.
+	 */
+	public static synchronized void gauge(String name, Gauge gauge) {
+		GAUGES.put(name, gauge);
+	}
+
+	/**
+	 * @return a text table of all metrics, throughput is per second since the
+	 *         registry was created
+	 */
+	public static synchronized String snapshot() {
+		double seconds = Math.max(1e-9, (System.nanoTime() - START) / 1e9);
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("metrics after %.1fs%n", seconds));
+
+		for (Entry<String, Timer> e : TIMERS.entrySet()) {
+			Timer t = e.getValue();
+			long count = t.getCount();
+			sb.append(String.format(
+					"  %-24s count=%d rate=%.1f/s mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms%n",
+					e.getKey(), count, count / seconds, count == 0 ? 0
+							: t.getTotalNanos() / 1e6 / count, t.quantile(0.5),
+					t.quantile(0.9), t.quantile(0.99), t.maxNanos.get() / 1e6));
+		}
+		for (Entry<String, Counter> e : COUNTERS.entrySet()) {
+			long value = e.getValue().get();
+			sb.append(String.format("  %-24s total=%d rate=%.1f/s%n", e.getKey(),
+					value, value / seconds));
+		}
+		for (Entry<String, Gauge> e : GAUGES.entrySet()) {
+			sb.append(String.format("  %-24s value=%d%n", e.getKey(), e.getValue()
+					.value()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Prints a snapshot to out every period seconds on a daemon thread, until
+	 * stopReporting is called.
+	 */
+	public static synchronized void startReporting(long period, final PrintStream out) {
+		stopReporting();
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "metrics-reporter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				out.print(snapshot());
+			}
+		}, period, period, TimeUnit.SECONDS);
+	}
+
+	public static synchronized void stopReporting() {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+	}
+}
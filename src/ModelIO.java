@@ -0,0 +1,292 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import mpi.cbg.fly.Feature;
+
+/**
+ * Compact binary persistence of the vocabulary and of trained classifiers.
+ *
+ * Every file starts with a header holding a magic number, the format version, the
+ * kind of model and the identity of the vocabulary it belongs to. A classifier can
+ * only be loaded for the vocabulary it was trained on, since its histogram bins are
+ * the visual words of exactly that vocabulary.
+ */
+public final class ModelIO {
+
+	private static final int MAGIC = 0x43424952; // "CBIR"
+	private static final int FORMAT_VERSION = 1;
+
+	private static final String VOCABULARY = "Vocabulary";
+	private static final String PCA_KIND = "PCA";
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private ModelIO() {
+	}
+
+	/**
+	 * @return a 64 bit FNV-1a hash over the visual word IDs and centroid
+	 *         descriptors, identifying the vocabulary
+	 */
+	public static long vocabularyId(List<VisualWord> words) {
+		long hash = mix(FNV_OFFSET, words.size());
+		for (VisualWord word : words) {
+			hash = mix(hash, word.classID);
+			float[] descriptor = word.centroied.descriptor;
+			hash = mix(hash, descriptor.length);
+			for (float value : descriptor) {
+				hash = mix(hash, Float.floatToIntBits(value));
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @return a 64 bit FNV-1a hash over the descriptors of the features,
+	 *         identifying a training set
+	 */
+	public static long descriptorsId(Feature[] features) {
+		long hash = mix(FNV_OFFSET, features.length);
+		for (Feature feature : features) {
+			hash = mix(hash, feature.descriptor.length);
+			for (float value : feature.descriptor) {
+				hash = mix(hash, Float.floatToIntBits(value));
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @return a 64 bit FNV-1a hash over the saved form of the classifier,
+	 *         identifying the model
+	 */
+	public static long modelId(IClassifier classifier, long vocabularyId)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			classifier.save(out, vocabularyId);
+		}
+		return hash(bytes.toByteArray());
+	}
+
+	/**
+	 * @return a 64 bit FNV-1a hash over the UTF-8 bytes of a settings string
+	 */
+	public static long settingsId(String settings) {
+		return hash(settings.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static long hash(byte[] bytes) {
+		long hash = FNV_OFFSET;
+		for (byte value : bytes) {
+			hash ^= value & 0xff;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private static long mix(long hash, int value) {
+		for (int shift = 0; shift < 32; shift += 8) {
+			hash ^= (value >>> shift) & 0xff;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	public static void writeHeader(DataOutputStream out, String kind,
+			long vocabularyId) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeUTF(kind);
+		out.writeLong(vocabularyId);
+	}
+
+	/**
+	 * Reads a header and rejects files of another kind, format version or
+	 * vocabulary.
+	 */
+	public static void readHeader(DataInputStream in, String kind,
+			long vocabularyId) throws IOException {
+		long storedId = readHeader(in, kind);
+		if (storedId != vocabularyId) {
+			throw new IOException("Model was trained on vocabulary "
+					+ Long.toHexString(storedId) + ", not on "
+					+ Long.toHexString(vocabularyId));
+		}
+	}
+
+	/**
+	 * Reads a header and rejects files of another kind or format version.
+	 * 
+	 * @return the id stored in the header, e.g. the vocabulary id
+	 */
+	public static long readHeader(DataInputStream in, String kind)
+			throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a model file");
+		}
+		int version = in.readInt();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unsupported model format version " + version);
+		}
+		String storedKind = in.readUTF();
+		if (!storedKind.equals(kind)) {
+			throw new IOException("Expected a " + kind + " model but found "
+					+ storedKind);
+		}
+		return in.readLong();
+	}
+
+	public static void save(IClassifier classifier, File file, long vocabularyId)
+			throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)))) {
+			classifier.save(out, vocabularyId);
+		}
+	}
+
+	public static void load(IClassifier classifier, File file, long vocabularyId)
+			throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)))) {
+			classifier.load(in, vocabularyId);
+		}
+	}
+
+	public static void saveVocabulary(List<VisualWord> words, File file)
+			throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)))) {
+			writeHeader(out, VOCABULARY, vocabularyId(words));
+			out.writeInt(words.size());
+			for (VisualWord word : words) {
+				out.writeInt(word.classID);
+				writeFloats(out, word.centroied.descriptor);
+			}
+		}
+	}
+
+	/**
+	 * Loads a vocabulary. Only the centroid descriptors are stored, the loaded
+	 * centroids have no location, scale or orientation.
+	 */
+	public static List<VisualWord> loadVocabulary(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+					|| !in.readUTF().equals(VOCABULARY)) {
+				throw new IOException("Not a vocabulary file: " + file);
+			}
+			long storedId = in.readLong();
+
+			int count = in.readInt();
+			List<VisualWord> words = new ArrayList<VisualWord>(count);
+			for (int i = 0; i < count; i++) {
+				int classID = in.readInt();
+				Feature centroid = new Feature();
+				centroid.descriptor = readFloats(in);
+				words.add(new VisualWord(centroid, classID));
+			}
+
+			if (vocabularyId(words) != storedId) {
+				throw new IOException("Corrupt vocabulary file: " + file);
+			}
+			return words;
+		}
+	}
+
+	/**
+	 * Saves the descriptor projection a vocabulary was clustered on.
+	 */
+	public static void savePCA(PCA pca, File file, long vocabularyId)
+			throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)))) {
+			writeHeader(out, PCA_KIND, vocabularyId);
+			pca.save(out);
+		}
+	}
+
+	public static PCA loadPCA(File file, long vocabularyId) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)))) {
+			readHeader(in, PCA_KIND, vocabularyId);
+			return PCA.load(in);
+		}
+	}
+
+	public static void writeStrings(DataOutputStream out, String[] values)
+			throws IOException {
+		out.writeInt(values.length);
+		for (String value : values) {
+			out.writeUTF(value);
+		}
+	}
+
+	public static String[] readStrings(DataInputStream in) throws IOException {
+		String[] values = new String[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readUTF();
+		}
+		return values;
+	}
+
+	public static void writeInts(DataOutputStream out, int[] values)
+			throws IOException {
+		out.writeInt(values.length);
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	public static int[] readInts(DataInputStream in) throws IOException {
+		int[] values = new int[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	public static void writeFloats(DataOutputStream out, float[] values)
+			throws IOException {
+		out.writeInt(values.length);
+		for (float value : values) {
+			out.writeFloat(value);
+		}
+	}
+
+	public static float[] readFloats(DataInputStream in) throws IOException {
+		float[] values = new float[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readFloat();
+		}
+		return values;
+	}
+
+	public static void writeDoubles(DataOutputStream out, double[] values)
+			throws IOException {
+		out.writeInt(values.length);
+		for (double value : values) {
+			out.writeDouble(value);
+		}
+	}
+
+	public static double[] readDoubles(DataInputStream in) throws IOException {
+		double[] values = new double[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readDouble();
+		}
+		return values;
+	}
+}
@@ -1,36 +1,65 @@
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Vector;
 
 
+/**
+ * Multinomial naive Bayes on VisualWord histograms.
+ *
+ * Scoring happens in log space: log P(C) + sum_f h_f * log P(f | C), so large
+ * histograms do not underflow. The log estimates are kept in a feature major
+ * matrix, the score of all classes is accumulated in one pass over the non zero
+ * bins of a histogram.
+ *
+ * The classifier can be updated with single labeled histograms after learning,
+ * an update only refreshes the matrix rows of the bins the histogram contains.
+ */
 public final class NaiveBayesClassifier implements IClassifier {
 
 	private final int classCnt;
 	private final int featureCnt;
 	
 	private final String[] classNames;
-	private final float[] aPriori;
 	private final int[] documentCounts;
 	private final int[] totalFeatureCounts;
 	private final int[][] featureCounts;
-	private final double[][] probabilities;
+	
+	private final double[] logAPriori;
+	//log(featureCounts[clazz][feature] + 1) at [feature * classCnt + clazz]
+	private final double[] logFeatureCounts;
+	//log(totalFeatureCounts[clazz] + featureCnt), the add one smoothed denominator
+	private final double[] logNormalizers;
 	
 	private int totalDocuments = 0;
 	
+	//per thread scores of classify, so classifying does not allocate
+	private final ThreadLocal<double[]> scratch = new ThreadLocal<double[]>() {
+		@Override
+		protected double[] initialValue() {
+			return new double[classCnt];
+		}
+	};
+	
 	public NaiveBayesClassifier(int classes, int K) {
 		this.featureCnt = K;
 		this.classCnt = classes;
 		this.classNames = new String[classes];
-		this.aPriori = new float[classes];
 		this.documentCounts = new int[classes];
 		this.totalFeatureCounts = new int [classes];
 		this.featureCounts = new int [classes][featureCnt];
-		this.probabilities = new double[classes][featureCnt];
+		this.logAPriori = new double[classes];
+		this.logFeatureCounts = new double[featureCnt * classes];
+		this.logNormalizers = new double[classes];
 	}
 	
 	@Override
 	public void learn(Map<String, Vector<int[]>> dataSet) {
 		System.arraycopy(dataSet.keySet().toArray(new String[dataSet.keySet().size()]), 0, classNames, 0, classNames.length);
+		resetCounts();
 		
 		int classId = 0;
 		for(String clazz : dataSet.keySet()) {
@@ -44,34 +73,143 @@ public final class NaiveBayesClassifier implements IClassifier {
 		estimateAPriori();
 		estimateFeatureProbabilities();
 	}
-
+	
+	/**
+	 * Adds a labeled histogram to the learned model. Only the rows of the bins
+	 * present in the histogram and the per class terms are recomputed.
+	 *
+	 * Updates are serialized, but not isolated from concurrent classifications,
+	 * which may see a partially applied update.
+	 */
+	public synchronized void update(String className, int[] histogram) {
+		final int classId = classIndex(className);
+		
+		updateTotals(classId, 1);
+		for(int feature = 0; feature < featureCnt; feature++) {
+			final int count = histogram[feature];
+			if(count != 0) {
+				featureCounts[classId][feature] += count;
+				totalFeatureCounts[classId] += count;
+				logFeatureCounts[feature * classCnt + classId] = Math.log(featureCounts[classId][feature] + 1);
+			}
+		}
+		
+		logNormalizers[classId] = Math.log(totalFeatureCounts[classId] + featureCnt);
+		estimateAPriori();
+	}
+	
 	@Override
 	public String classify(int[] histogram) {
-		final double[] probs = new double[classNames.length];
-		for(int i = 0; i < probs.length; i++) {
-			probs[i] = aPriori[i];
-		}
+		int max = score(histogram, scratch.get(), 0);
 		
-		for(int i = 0; i < histogram.length; i++) {
-			for(int clazz = 0; clazz < classNames.length; clazz++) {
-				final int currentFeature = histogram[i];
-				if(currentFeature != 0) {
-					final double prob = getEstimatedFeatureProbability(clazz, i);
-					probs[clazz] *= prob*currentFeature;
+		return classNames[max];
+	}
+	
+	@Override
+	public String[] getClassNames() {
+		return classNames;
+	}
+	
+	@Override
+	public void classify(final int[][] histograms, final int[] classIndices, final double[] scores) {
+		ParallelBatch.run(histograms.length, new ParallelBatch.Range() {
+			@Override
+			public void run(int from, int to) {
+				for(int i = from; i < to; i++) {
+					classIndices[i] = score(histograms[i], scores, i * classCnt);
 				}
 			}
+		});
+	}
+	
+	@Override
+	public void save(DataOutputStream out, long vocabularyId) throws IOException {
+		ModelIO.writeHeader(out, "NaiveBayesClassifier", vocabularyId);
+		out.writeInt(classCnt);
+		out.writeInt(featureCnt);
+		ModelIO.writeStrings(out, classNames);
+		ModelIO.writeInts(out, documentCounts);
+		for(int[] counts : featureCounts) {
+			ModelIO.writeInts(out, counts);
+		}
+	}
+	
+	/*
+	 * Only the counts are stored, the estimates are derived from them again.
+	 */
+	@Override
+	public void load(DataInputStream in, long vocabularyId) throws IOException {
+		ModelIO.readHeader(in, "NaiveBayesClassifier", vocabularyId);
+		if(in.readInt() != classCnt || in.readInt() != featureCnt) {
+			throw new IOException("Model was trained for another number of classes or features");
 		}
 		
-		int max = getMaximumPropbabilityClass(probs);
+		System.arraycopy(ModelIO.readStrings(in), 0, classNames, 0, classCnt);
+		System.arraycopy(ModelIO.readInts(in), 0, documentCounts, 0, classCnt);
+		totalDocuments = 0;
+		for(int classId = 0; classId < classCnt; classId++) {
+			totalDocuments += documentCounts[classId];
+			System.arraycopy(ModelIO.readInts(in), 0, featureCounts[classId], 0, featureCnt);
+			totalFeatureCounts[classId] = 0;
+			for(int count : featureCounts[classId]) {
+				totalFeatureCounts[classId] += count;
+			}
+		}
 		
-		return classNames[max];
+		estimateAPriori();
+		estimateFeatureProbabilities();
+	}
+	
+	/*
+	 * Writes the class log likelihoods to scores[offset .. offset+classCnt) and
+	 * returns the most probable class.
+	 */
+	private int score(int[] histogram, double[] scores, int offset) {
+		int total = 0;
+		for(int feature = 0; feature < featureCnt; feature++) {
+			total += histogram[feature];
+		}
+		
+		for(int clazz = 0; clazz < classCnt; clazz++) {
+			scores[offset + clazz] = logAPriori[clazz] - total * logNormalizers[clazz];
+		}
+		
+		for(int feature = 0; feature < featureCnt; feature++) {
+			final int currentFeature = histogram[feature];
+			if(currentFeature != 0) {
+				final int row = feature * classCnt;
+				for(int clazz = 0; clazz < classCnt; clazz++) {
+					scores[offset + clazz] += currentFeature * logFeatureCounts[row + clazz];
+				}
+			}
+		}
+		
+		return ParallelBatch.argMax(scores, offset, classCnt);
+	}
+	
+	private int classIndex(String className) {
+		for(int classId = 0; classId < classCnt; classId++) {
+			if(className.equals(classNames[classId])) {
+				return classId;
+			}
+		}
+		throw new IllegalArgumentException("Unknown class " + className);
+	}
+	
+	private void resetCounts() {
+		totalDocuments = 0;
+		Arrays.fill(documentCounts, 0);
+		Arrays.fill(totalFeatureCounts, 0);
+		for(int[] counts : featureCounts) {
+			Arrays.fill(counts, 0);
+		}
 	}
 	
 	private void updateTotals(int classId, final int currentDocumentCount) {
-		documentCounts[classId] = currentDocumentCount;
+		documentCounts[classId] += currentDocumentCount;
 		totalDocuments += currentDocumentCount;
 	}
-
+	
 	private void calculateFeatureCountsForClass(Vector<int[]> dataSet, int classId) {
 		for(int[] currentFeatures : dataSet) {
 			for(int currentFeature = 0; currentFeature < currentFeatures.length; currentFeature++) {
@@ -81,43 +219,24 @@ public final class NaiveBayesClassifier implements IClassifier {
 			}
 		}
 	}
-
+	
 	private void estimateAPriori() {
 		for(int currentClass = 0; currentClass < classCnt; currentClass++) {
-			aPriori[currentClass] = (float) documentCounts[currentClass] / totalDocuments;
+			logAPriori[currentClass] = Math.log((double) documentCounts[currentClass] / totalDocuments);
 		}
 	}
 	
+	/*
+	 * Calculate log P(F = feature | C = clazz) using add one smoothing, split into
+	 * the log numerators per feature and the log denominator per class.
+	 */
 	private void estimateFeatureProbabilities() {
 		for(int i = 0; i < classCnt; i++) {
 			for(int j = 0; j < featureCnt; j++) {
-				probabilities[i][j] = estimateFeatureProbability(i, j);
-			}
-		}
-	}
-	
-	/*
-	 * Calculate P(F = feature | C = clazz) using add one smoothing.
-	 */
-	private double estimateFeatureProbability(int clazz, int feature) {
-		return (double)(featureCounts[clazz][feature]+1) / totalFeatureCounts[clazz];
-	}
-
-	private double getEstimatedFeatureProbability(int clazz, int feature) {
-		return probabilities[clazz][feature];
-	}
-	
-	private int getMaximumPropbabilityClass(final double[] probs) {
-		int max = 0;
-		double maxValue = probs[max];
-		
-		for(int i = 1; i < probs.length; i++) {
-			if(probs[i] > maxValue) {
-				max = i;
-				maxValue = probs[i];
+				logFeatureCounts[j * classCnt + i] = Math.log(featureCounts[i][j] + 1);
 			}
+			logNormalizers[i] = Math.log(totalFeatureCounts[i] + featureCnt);
 		}
-		return max;
 	}
 	
 }
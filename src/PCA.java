@@ -0,0 +1,142 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import Jama.Matrix;
+import Jama.SingularValueDecomposition;
+
+/**
+ * A principal component projection of float vectors, fitted with the Jama SVD of
+ * the centered samples.
+ *
+ * Projected vectors are (x - mean) * components^T, the coordinates of x along the
+ * directions of largest variance in the samples.
+ */
+public final class PCA {
+
+	private final float[] mean;
+	// one principal direction per row, of unit length
+	private final float[][] components;
+	private final double retainedVariance;
+
+	private PCA(float[] mean, float[][] components, double retainedVariance) {
+		this.mean = mean;
+		this.components = components;
+		this.retainedVariance = retainedVariance;
+	}
+
+	/**
+	 * Fits a projection to dimension components. There are at most as many
+	 * components as samples or input dimensions, whichever is smaller.
+	 */
+	public static PCA fit(float[][] samples, int dimension) {
+		final int n = samples.length;
+		final int d = samples[0].length;
+
+		float[] mean = new float[d];
+		for (float[] sample : samples) {
+			for (int j = 0; j < d; j++) {
+				mean[j] += sample[j];
+			}
+		}
+		for (int j = 0; j < d; j++) {
+			mean[j] /= n;
+		}
+
+		// Jama only decomposes matrices with at least as many rows as columns,
+		// with fewer samples than dimensions the transposed matrix is used
+		final boolean transposed = n < d;
+		double[][] centered = transposed ? new double[d][n] : new double[n][d];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < d; j++) {
+				double value = samples[i][j] - mean[j];
+				if (transposed) {
+					centered[j][i] = value;
+				} else {
+					centered[i][j] = value;
+				}
+			}
+		}
+
+		SingularValueDecomposition svd = new Matrix(centered).svd();
+		double[][] directions = (transposed ? svd.getU() : svd.getV())
+				.getArray();
+		double[] singularValues = svd.getSingularValues();
+
+		final int k = Math.min(dimension, Math.min(n, d));
+		float[][] components = new float[k][d];
+		for (int c = 0; c < k; c++) {
+			for (int j = 0; j < d; j++) {
+				components[c][j] = (float) directions[j][c];
+			}
+		}
+
+		double total = 0, retained = 0;
+		for (int c = 0; c < singularValues.length; c++) {
+			double variance = singularValues[c] * singularValues[c];
+			total += variance;
+			if (c < k) {
+				retained += variance;
+			}
+		}
+
+		return new PCA(mean, components, total == 0 ? 1 : retained / total);
+	}
+
+	public int inputDimension() {
+		return mean.length;
+	}
+
+	public int outputDimension() {
+		return components.length;
+	}
+
+	/**
+	 * @return the fraction of the sample variance kept by the components
+	 */
+	public double getRetainedVariance() {
+		return retainedVariance;
+	}
+
+	/**
+	 * Projects x into out, which must have at least outputDimension() entries.
+	 */
+	public void project(float[] x, float[] out) {
+		for (int c = 0; c < components.length; c++) {
+			final float[] component = components[c];
+			float sum = 0;
+			for (int j = 0; j < mean.length; j++) {
+				sum += (x[j] - mean[j]) * component[j];
+			}
+			out[c] = sum;
+		}
+	}
+
+	public float[] project(float[] x) {
+		float[] out = new float[components.length];
+		project(x, out);
+		return out;
+	}
+
+	public void save(DataOutputStream out) throws IOException {
+		ModelIO.writeFloats(out, mean);
+		out.writeDouble(retainedVariance);
+		out.writeInt(components.length);
+		for (float[] component : components) {
+			ModelIO.writeFloats(out, component);
+		}
+	}
+
+	public static PCA load(DataInputStream in) throws IOException {
+		float[] mean = ModelIO.readFloats(in);
+		double retainedVariance = in.readDouble();
+		float[][] components = new float[in.readInt()][];
+		for (int c = 0; c < components.length; c++) {
+			components[c] = ModelIO.readFloats(in);
+			if (components[c].length != mean.length) {
+				throw new IOException("Corrupt PCA component " + c);
+			}
+		}
+		return new PCA(mean, components, retainedVariance);
+	}
+}
@@ -0,0 +1,342 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import javax.imageio.ImageIO;
+
+import mpi.cbg.fly.Feature;
+import mpi.cbg.fly.FloatArray2D;
+
+/**
+ * An image folder packed into a few large shard files, which are read by memory
+ * mapping instead of opening and decoding every image file.
+ *
+ * A shard holds either the grayscale planes of the images, as computed by
+ * CbirWithSift.ImageToFloatArray2D, or their SIFT features. Feature shards are
+ * bound by their header to the extraction settings (see
+ * CbirWithSift.featuresId), so features are never read for other settings.
+ * After the header follow the records of the images:
+ * <ul>
+ * <li>the file name and the class name, the file name up to the first '_'</li>
+ * <li>a plane: its width, height and the float pixels row by row</li>
+ * <li>or the features: their count and descriptor dimension, then per feature
+ * its location, scale, orientation and descriptor as floats</li>
+ * </ul>
+ * A new shard is started once a shard holds SHARD_BYTES.
+ *
+ * Usage: java PackedDataset imageFolder packedFolder [planes|features]
+ */
+public class PackedDataset {
+
+	public static final String PLANES = "planes";
+	public static final String FEATURES = "features";
+
+	private static final long SHARD_BYTES = 256L << 20;
+
+	/**
+	 * An image of a shard, decoded from the mapped shard on demand.
+	 */
+	public static final class Record {
+		public final String fileName;
+		public final String className;
+		private final ByteBuffer data;
+
+		private Record(String fileName, String className, ByteBuffer data) {
+			this.fileName = fileName;
+			this.className = className;
+			this.data = data;
+		}
+
+		public boolean hasFeatures() {
+			return data.getInt(0) < 0;
+		}
+
+		public FloatArray2D plane() {
+			ByteBuffer buffer = data.duplicate();
+			int width = buffer.getInt();
+			int height = buffer.getInt();
+			FloatArray2D plane = new FloatArray2D(width, height);
+			buffer.asFloatBuffer().get(plane.data);
+			return plane;
+		}
+
+		public Vector<Feature> features() {
+			ByteBuffer buffer = data.duplicate();
+			buffer.getInt();
+			int count = buffer.getInt();
+			int dimension = buffer.getInt();
+			Vector<Feature> features = new Vector<Feature>(count);
+			for (int i = 0; i < count; i++) {
+				Feature feature = new Feature();
+				feature.location = new float[] { buffer.getFloat(),
+						buffer.getFloat() };
+				feature.scale = buffer.getFloat();
+				feature.orientation = buffer.getFloat();
+				feature.descriptor = new float[dimension];
+				buffer.asFloatBuffer().get(feature.descriptor);
+				buffer.position(buffer.position() + 4 * dimension);
+				features.add(feature);
+			}
+			return features;
+		}
+	}
+
+	/**
+	 * Writes the records of one kind into numbered shards of a folder.
+	 */
+	public static class Writer implements Closeable {
+		private final File folder;
+		private final String kind;
+		private final long featuresId;
+		private DataOutputStream out;
+		private int shards;
+
+		/**
+		 * @param featuresId
+		 *            the extraction settings of the features, 0 for planes
+		 */
+		public Writer(File folder, String kind, long featuresId)
+				throws IOException {
+			if (!folder.isDirectory() && !folder.mkdirs()) {
+				throw new IOException("Cannot create " + folder);
+			}
+			this.folder = folder;
+			this.kind = kind;
+			this.featuresId = featuresId;
+		}
+
+		public void addPlane(String fileName, FloatArray2D plane)
+				throws IOException {
+			DataOutputStream out = next(fileName);
+			out.writeInt(plane.width);
+			out.writeInt(plane.height);
+			for (float value : plane.data) {
+				out.writeFloat(value);
+			}
+		}
+
+		public void addFeatures(String fileName, List<Feature> features)
+				throws IOException {
+			int dimension = features.isEmpty() ? 0
+					: features.get(0).descriptor.length;
+			DataOutputStream out = next(fileName);
+			// a negative first int tells features from a plane
+			out.writeInt(-1);
+			out.writeInt(features.size());
+			out.writeInt(dimension);
+			for (Feature feature : features) {
+				if (feature.descriptor.length != dimension) {
+					throw new IOException("Descriptors of dimensions "
+							+ dimension + " and " + feature.descriptor.length
+							+ " in " + fileName);
+				}
+				out.writeFloat(feature.location[0]);
+				out.writeFloat(feature.location[1]);
+				out.writeFloat(feature.scale);
+				out.writeFloat(feature.orientation);
+				for (float value : feature.descriptor) {
+					out.writeFloat(value);
+				}
+			}
+		}
+
+		/*
+		 * Starts the record of an image, in a new shard if the current one is
+		 * full.
+		 */
+		private DataOutputStream next(String fileName) throws IOException {
+			if (out == null || out.size() >= SHARD_BYTES) {
+				close();
+				out = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(new File(folder, String.format(
+								"shard-%05d.%s", shards++, kind)))));
+				ModelIO.writeHeader(out, kind, featuresId);
+			}
+			writeString(out, fileName);
+			writeString(out, className(fileName));
+			return out;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		}
+	}
+
+	private PackedDataset() {
+	}
+
+	/**
+	 * @return whether the folder holds shards of the kind
+	 */
+	public static boolean exists(File folder, String kind) {
+		return shards(folder, kind).length > 0;
+	}
+
+	/**
+	 * @param featuresId
+	 *            the extraction settings of the features, 0 for planes
+	 * @return whether all shards of the kind in the folder were packed for the
+	 *         settings, false if features were packed with other settings
+	 */
+	public static boolean matches(File folder, String kind, long featuresId)
+			throws IOException {
+		for (File shard : shards(folder, kind)) {
+			try (DataInputStream in = new DataInputStream(new FileInputStream(
+					shard))) {
+				if (ModelIO.readHeader(in, kind) != featuresId) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Maps the shards of the kind in a folder.
+	 *
+	 * @param featuresId
+	 *            the extraction settings of the features, 0 for planes
+	 * @return the records of all shards in the order they were written
+	 * @throws IOException
+	 *             also if a shard was packed with other extraction settings
+	 */
+	public static List<Record> read(File folder, String kind, long featuresId)
+			throws IOException {
+		List<Record> records = new ArrayList<Record>();
+		for (File shard : shards(folder, kind)) {
+			try (FileInputStream file = new FileInputStream(shard)) {
+				long storedId = ModelIO.readHeader(new DataInputStream(file),
+						kind);
+				if (storedId != featuresId) {
+					throw new IOException(shard + " was packed with extraction "
+							+ "settings " + Long.toHexString(storedId)
+							+ ", not " + Long.toHexString(featuresId));
+				}
+				FileChannel channel = file.getChannel();
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+						channel.position(), channel.size() - channel.position());
+				while (buffer.hasRemaining()) {
+					String fileName = readString(buffer);
+					String className = readString(buffer);
+					int start = buffer.position();
+					skipRecord(buffer);
+					ByteBuffer data = buffer.duplicate();
+					data.position(start).limit(buffer.position());
+					records.add(new Record(fileName, className, data.slice()));
+				}
+			}
+		}
+		return records;
+	}
+
+	private static void skipRecord(ByteBuffer buffer) {
+		int first = buffer.getInt();
+		if (first < 0) {
+			int count = buffer.getInt();
+			int dimension = buffer.getInt();
+			buffer.position(buffer.position() + 4 * count * (4 + dimension));
+		} else {
+			int height = buffer.getInt();
+			buffer.position(buffer.position() + 4 * first * height);
+		}
+	}
+
+	private static File[] shards(File folder, String kind) {
+		File[] shards = folder.listFiles();
+		if (shards == null) {
+			return new File[0];
+		}
+		List<File> matching = new ArrayList<File>();
+		for (File shard : shards) {
+			if (shard.getName().endsWith("." + kind)) {
+				matching.add(shard);
+			}
+		}
+		File[] sorted = matching.toArray(new File[matching.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * @return the class of an image file, its name up to the first '_'
+	 */
+	public static String className(String fileName) {
+		return fileName.substring(0, fileName.indexOf('_'));
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+			throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Packs the images of a folder in file name order.
+	 */
+	public static void pack(File imageFolder, File packedFolder, String kind)
+			throws IOException {
+		File[] files = imageFolder.listFiles();
+		if (files == null) {
+			throw new IOException("Not a folder: " + imageFolder);
+		}
+		Arrays.sort(files);
+
+		long featuresId = kind.equals(FEATURES) ? CbirWithSift.featuresId() : 0;
+		try (Writer writer = new Writer(packedFolder, kind, featuresId)) {
+			for (File file : files) {
+				if (file.getName().equals(".svn")
+						|| file.getName().indexOf('_') < 0) {
+					continue;
+				}
+				BufferedImage image = ImageIO.read(file);
+				if (image == null) {
+					throw new IOException("Not an image: " + file);
+				}
+				FloatArray2D plane = CbirWithSift.ImageToFloatArray2D(image);
+				if (kind.equals(FEATURES)) {
+					writer.addFeatures(file.getName(),
+							CbirWithSift.calculateSift(plane));
+				} else {
+					writer.addPlane(file.getName(), plane);
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: java PackedDataset imageFolder "
+					+ "packedFolder [planes|features]");
+			System.exit(1);
+		}
+		String kind = args.length > 2 ? args[2] : PLANES;
+		if (!kind.equals(PLANES) && !kind.equals(FEATURES)) {
+			throw new IllegalArgumentException("Unknown kind " + kind);
+		}
+		pack(new File(args[0]), new File(args[1]), kind);
+	}
+}
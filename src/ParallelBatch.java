@@ -0,0 +1,87 @@
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits a range of batch items into chunks and processes them on a shared pool
+ * of daemon threads. Used by the batch classification of the IClassifiers.
+ */
+public final class ParallelBatch {
+
+	// chunks per thread, to balance chunks of different cost
+	private static final int CHUNKS_PER_THREAD = 4;
+	// below this size a batch is processed by the calling thread
+	private static final int MIN_CHUNK = 16;
+
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(
+			THREADS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "batch-worker");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	public interface Range {
+		void run(int from, int to);
+	}
+
+	private ParallelBatch() {
+	}
+
+	/**
+	 * Calls range.run for disjoint chunks covering [0, n) and waits until all
+	 * chunks are done.
+	 */
+	public static void run(int n, final Range range) {
+		final int chunk = Math.max(MIN_CHUNK, n / (THREADS * CHUNKS_PER_THREAD) + 1);
+		if (n <= chunk || THREADS == 1) {
+			range.run(0, n);
+			return;
+		}
+
+		List<Future<?>> futures = new LinkedList<Future<?>>();
+		for (int from = 0; from < n; from += chunk) {
+			final int start = from;
+			final int end = Math.min(from + chunk, n);
+			futures.add(POOL.submit(new Runnable() {
+				@Override
+				public void run() {
+					range.run(start, end);
+				}
+			}));
+		}
+
+		for (Future<?> f : futures) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Batch interrupted", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Batch failed", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * @return the index of the maximum of scores[offset .. offset+length)
+	 *         relative to offset
+	 */
+	public static int argMax(double[] scores, int offset, int length) {
+		int max = 0;
+		for (int i = 1; i < length; i++) {
+			if (scores[offset + i] > scores[offset + max]) {
+				max = i;
+			}
+		}
+		return max;
+	}
+}
@@ -0,0 +1,170 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import mpi.cbg.fly.Feature;
+import mpi.cbg.fly.FloatArray2D;
+import mpi.cbg.fly.FloatArray2DSIFT;
+
+/**
+ * Extracts the SIFT features of one image on a shared pool of daemon threads,
+ * to reduce the latency of a single large image.
+ *
+ * A FloatArray2DSIFT is not thread safe, its octaves share one DoG detector.
+ * Every task therefore works on its own FloatArray2DSIFT:
+ * <ul>
+ * <li>Each octave after the first is detected by a FloatArray2DSIFT initialized
+ * with the base image of that octave, and its features are scaled back to the
+ * image.</li>
+ * <li>The first octave, which holds most of the work, is split into horizontal
+ * strips overlapping by MARGIN rows. Only the features located in the own rows
+ * of a strip are kept, the margin covers the support of the Gaussians and the
+ * descriptor windows, so the strips find the features of the whole image. An
+ * image too small for two strips is detected in the already initialized first
+ * octave, by the calling thread.</li>
+ * </ul>
+ * The features are merged in octave and strip order.
+ */
+public final class ParallelSift {
+
+	// the rows a strip of the first octave reads beyond its own rows
+	private static final int MARGIN = 64;
+	// the minimum own rows of a strip, keeps the overlap at most half a strip
+	private static final int MIN_STRIP = 256;
+
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(
+			THREADS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "sift-worker");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private ParallelSift() {
+	}
+
+	/**
+	 * Extracts the features like FloatArray2DSIFT.init(image, steps,
+	 * initialSigma, minSize, maxSize) followed by run(maxSize).
+	 */
+	public static Vector<Feature> run(FloatArray2D image, int fdsize,
+			int fdbins, int steps, float initialSigma, int minSize, int maxSize) {
+		return run(image, fdsize, fdbins, steps, initialSigma, minSize, maxSize,
+				THREADS);
+	}
+
+	/**
+	 * Extracts the features with at most the given number of strips of the
+	 * first octave.
+	 */
+	static Vector<Feature> run(FloatArray2D image, final int fdsize,
+			final int fdbins, final int steps, final float initialSigma,
+			final int minSize, final int maxSize, int maxStrips) {
+		FloatArray2DSIFT sift = new FloatArray2DSIFT(fdsize, fdbins);
+		sift.init(image, steps, initialSigma, minSize, maxSize);
+		if (maxStrips == 1) {
+			return sift.run(maxSize);
+		}
+
+		int strips = Math.max(1, Math.min(maxStrips, image.height / MIN_STRIP));
+
+		List<Future<Vector<Feature>>> futures = new ArrayList<Future<Vector<Feature>>>();
+		boolean first = sift.getOctave(0).width <= maxSize
+				&& sift.getOctave(0).height <= maxSize;
+		if (first && strips > 1) {
+			for (int strip = 0; strip < strips; strip++) {
+				final int top = image.height * strip / strips;
+				final int bottom = image.height * (strip + 1) / strips;
+				final FloatArray2D rows = rows(image, Math.max(0, top - MARGIN),
+						Math.min(image.height, bottom + MARGIN));
+				final int offset = Math.max(0, top - MARGIN);
+				futures.add(POOL.submit(new Callable<Vector<Feature>>() {
+					@Override
+					public Vector<Feature> call() {
+						Vector<Feature> features = detect(rows, 0, fdsize, fdbins,
+								steps, initialSigma, minSize, maxSize);
+						Vector<Feature> own = new Vector<Feature>();
+						for (Feature feature : features) {
+							feature.location[1] += offset;
+							if (feature.location[1] >= top
+									&& feature.location[1] < bottom) {
+								own.add(feature);
+							}
+						}
+						return own;
+					}
+				}));
+			}
+		}
+		for (int o = 1; o < sift.getOctaves().length; o++) {
+			if (sift.getOctave(o).width > maxSize
+					|| sift.getOctave(o).height > maxSize) {
+				continue;
+			}
+			final int octave = o;
+			final FloatArray2D base = sift.getOctave(o).getL(0).clone();
+			futures.add(POOL.submit(new Callable<Vector<Feature>>() {
+				@Override
+				public Vector<Feature> call() {
+					return detect(base, octave, fdsize, fdbins, steps,
+							initialSigma, minSize, maxSize);
+				}
+			}));
+		}
+
+		// a single strip is the first octave of sift, detected on this thread
+		Vector<Feature> features = new Vector<Feature>();
+		if (first && strips == 1) {
+			features.addAll(sift.runOctave(0));
+		}
+		for (Future<Vector<Feature>> f : futures) {
+			try {
+				features.addAll(f.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("SIFT interrupted", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("SIFT failed", e.getCause());
+			}
+		}
+		return features;
+	}
+
+	/*
+	 * The features of the first octave of base, which is octave of the image,
+	 * in the coordinates and scale of the image.
+	 */
+	private static Vector<Feature> detect(FloatArray2D base, int octave,
+			int fdsize, int fdbins, int steps, float initialSigma, int minSize,
+			int maxSize) {
+		FloatArray2DSIFT sift = new FloatArray2DSIFT(fdsize, fdbins);
+		sift.init(base, steps, initialSigma, Math.min(minSize, Math.min(
+				base.width, base.height)), maxSize);
+		Vector<Feature> features = sift.runOctave(0);
+
+		float factor = 1 << octave;
+		for (Feature feature : features) {
+			feature.location[0] *= factor;
+			feature.location[1] *= factor;
+			feature.scale *= factor;
+		}
+		return features;
+	}
+
+	private static FloatArray2D rows(FloatArray2D image, int from, int to) {
+		FloatArray2D rows = new FloatArray2D(image.width, to - from);
+		System.arraycopy(image.data, from * image.width, rows.data, 0,
+				rows.data.length);
+		return rows;
+	}
+}
@@ -0,0 +1,189 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * A random forest of unpruned DecisionTrees. Each tree is grown on a bootstrap
+ * sample of the training histograms and considers a random subset of the columns
+ * at each split. The trees are grown in parallel and compiled into flat arrays,
+ * the forest predicts the class with the highest mean leaf class fraction.
+ */
+public class RandomForest implements IClassifier {
+
+	private static final int DEFAULT_TREES = 64;
+	private static final long DEFAULT_SEED = 4711;
+
+	private final String[] classNames;
+	private final int classCount;
+	private final int featureCount;
+	private final int treeCount;
+	private final long seed;
+	private DecisionTree.FlatTree[] trees;
+
+	// per thread scores of classify, so classifying does not allocate
+	private final ThreadLocal<double[]> scratch = new ThreadLocal<double[]>() {
+		@Override
+		protected double[] initialValue() {
+			return new double[classCount];
+		}
+	};
+
+	public RandomForest(int classCnt, int featureCnt) {
+		this(classCnt, featureCnt, DEFAULT_TREES, DEFAULT_SEED);
+	}
+
+	public RandomForest(int classCnt, int featureCnt, int treeCnt, long seed) {
+		this.classCount = classCnt;
+		this.featureCount = featureCnt;
+		this.treeCount = treeCnt;
+		this.seed = seed;
+		this.classNames = new String[classCnt];
+	}
+
+	@Override
+	public String classify(int[] histogram) {
+		return classNames[score(histogram, scratch.get(), 0)];
+	}
+
+	@Override
+	public String[] getClassNames() {
+		return classNames;
+	}
+
+	@Override
+	public void classify(final int[][] histograms, final int[] classIndices,
+			final double[] scores) {
+		ParallelBatch.run(histograms.length, new ParallelBatch.Range() {
+			@Override
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					classIndices[i] = score(histograms[i], scores, i * classCount);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Averages the leaf class fractions of all trees into scores[offset ..
+	 * offset+classCount) and returns the best class.
+	 */
+	private int score(int[] histogram, double[] scores, int offset) {
+		for (int clazz = 0; clazz < classCount; clazz++) {
+			scores[offset + clazz] = 0;
+		}
+		for (DecisionTree.FlatTree tree : trees) {
+			final int leaf = tree.leaf(histogram) * classCount;
+			for (int clazz = 0; clazz < classCount; clazz++) {
+				scores[offset + clazz] += tree.leafScores[leaf + clazz];
+			}
+		}
+		for (int clazz = 0; clazz < classCount; clazz++) {
+			scores[offset + clazz] /= trees.length;
+		}
+		return ParallelBatch.argMax(scores, offset, classCount);
+	}
+
+	@Override
+	public void learn(Map<String, Vector<int[]>> dataSet) {
+		List<int[]> histograms = new ArrayList<>();
+		List<Integer> labels = new ArrayList<>();
+
+		int classId = 0;
+		for (Entry<String, Vector<int[]>> entry : dataSet.entrySet()) {
+			classNames[classId] = entry.getKey();
+			for (int[] histogram : entry.getValue()) {
+				histograms.add(histogram);
+				labels.add(classId);
+			}
+			classId++;
+		}
+
+		int[][] data = histograms.toArray(new int[histograms.size()][]);
+		int[] dataLabels = new int[labels.size()];
+		for (int i = 0; i < dataLabels.length; i++) {
+			dataLabels[i] = labels.get(i);
+		}
+
+		trees = new DecisionTree.FlatTree[treeCount];
+		DecisionTree.SPLIT_POOL.invoke(new GrowTask(data, dataLabels, 0, treeCount));
+	}
+
+	/*
+	 * Grows the trees [from, to), splitting the range until a single tree is left.
+	 * Each tree has its own random generator derived from the seed, so the forest
+	 * does not depend on the scheduling.
+	 */
+	@SuppressWarnings("serial")
+	private class GrowTask extends RecursiveAction {
+		private final int[][] data;
+		private final int[] labels;
+		private final int from;
+		private final int to;
+
+		public GrowTask(int[][] data, int[] labels, int from, int to) {
+			this.data = data;
+			this.labels = labels;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new GrowTask(data, labels, from, middle), new GrowTask(
+						data, labels, middle, to));
+				return;
+			}
+
+			Random random = new Random(seed + from);
+			int[][] sample = new int[data.length][];
+			int[] sampleLabels = new int[data.length];
+			for (int i = 0; i < data.length; i++) {
+				int drawn = random.nextInt(data.length);
+				sample[i] = data[drawn];
+				sampleLabels[i] = labels[drawn];
+			}
+
+			int featuresPerSplit = Math.max(1, (int) Math.sqrt(featureCount));
+			DecisionTree tree = new DecisionTree(classCount, featureCount,
+					featuresPerSplit, random, false);
+			tree.learn(sample, sampleLabels, classNames);
+			trees[from] = tree.getFlatTree();
+		}
+	}
+
+	@Override
+	public void save(DataOutputStream out, long vocabularyId) throws IOException {
+		ModelIO.writeHeader(out, "RandomForest", vocabularyId);
+		out.writeInt(classCount);
+		out.writeInt(featureCount);
+		ModelIO.writeStrings(out, classNames);
+		out.writeInt(trees.length);
+		for (DecisionTree.FlatTree tree : trees) {
+			tree.save(out);
+		}
+	}
+
+	@Override
+	public void load(DataInputStream in, long vocabularyId) throws IOException {
+		ModelIO.readHeader(in, "RandomForest", vocabularyId);
+		if (in.readInt() != classCount || in.readInt() != featureCount) {
+			throw new IOException(
+					"Model was trained for another number of classes or features");
+		}
+		System.arraycopy(ModelIO.readStrings(in), 0, classNames, 0, classCount);
+		trees = new DecisionTree.FlatTree[in.readInt()];
+		for (int i = 0; i < trees.length; i++) {
+			trees[i] = DecisionTree.FlatTree.load(in, classCount);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded in-memory cache of query results, so a repeatedly submitted image
+ * costs a hash and a lookup instead of decoding, SIFT and quantization.
+ *
+ * A result is keyed by the SHA-256 of the image file and the identities of the
+ * vocabulary and the model that produced it (see ModelIO), so results of
+ * replaced models are never returned. The cache holds at most maxBytes of
+ * estimated entry sizes and evicts the least recently used entries. Hits,
+ * misses and evictions are counted in the Metrics.
+ */
+public class ResultCache {
+
+	private static final Metrics.Counter HITS = Metrics.counter("cache.hit");
+	private static final Metrics.Counter MISSES = Metrics.counter("cache.miss");
+	private static final Metrics.Counter EVICTIONS = Metrics
+			.counter("cache.eviction");
+
+	// the estimated size of an entry without its arrays and strings: key,
+	// result and map entry objects
+	private static final int ENTRY_OVERHEAD = 160;
+
+	public static final class Key {
+		private final byte[] contentHash;
+		private final long vocabularyId;
+		private final long modelId;
+		private final int hashCode;
+
+		private Key(byte[] contentHash, long vocabularyId, long modelId) {
+			this.contentHash = contentHash;
+			this.vocabularyId = vocabularyId;
+			this.modelId = modelId;
+			long ids = 31 * vocabularyId + modelId;
+			this.hashCode = 31 * Arrays.hashCode(contentHash)
+					+ (int) (ids ^ (ids >>> 32));
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return vocabularyId == other.vocabularyId
+					&& modelId == other.modelId
+					&& Arrays.equals(contentHash, other.contentHash);
+		}
+	}
+
+	/**
+	 * The histogram of an image and its labels, e.g. its class. A cached result
+	 * is shared, callers get a copy of it.
+	 */
+	public static final class Result {
+		public final int[] histogram;
+		public final String[] labels;
+
+		public Result(int[] histogram, String... labels) {
+			this.histogram = histogram;
+			this.labels = labels;
+		}
+
+		public Result copy() {
+			return new Result(histogram.clone(), labels.clone());
+		}
+
+		long size() {
+			long size = ENTRY_OVERHEAD + 4L * histogram.length;
+			for (String label : labels) {
+				size += 40 + 2L * label.length();
+			}
+			return size;
+		}
+	}
+
+	private final long maxBytes;
+	private final LinkedHashMap<Key, Result> entries = new LinkedHashMap<Key, Result>(
+			16, 0.75f, true);
+	private long bytes;
+
+	public ResultCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		Metrics.gauge("cache.bytes", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				synchronized (ResultCache.this) {
+					return bytes;
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the key of the image file content for the vocabulary and model
+	 */
+	public static Key key(byte[] content, long vocabularyId, long modelId) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+			return new Key(hash, vocabularyId, modelId);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * @return the cached result, null if there is none
+	 */
+	public synchronized Result get(Key key) {
+		Result result = entries.get(key);
+		if (result == null) {
+			MISSES.add(1);
+		} else {
+			HITS.add(1);
+		}
+		return result;
+	}
+
+	/**
+	 * Caches a result and evicts the least recently used results beyond
+	 * maxBytes. A result larger than maxBytes is not cached.
+	 */
+	public synchronized void put(Key key, Result result) {
+		long size = result.size();
+		if (size > maxBytes) {
+			return;
+		}
+		Result previous = entries.put(key, result);
+		if (previous != null) {
+			bytes -= previous.size();
+		}
+		bytes += size;
+
+		Iterator<Map.Entry<Key, Result>> eldest = entries.entrySet().iterator();
+		while (bytes > maxBytes) {
+			bytes -= eldest.next().getValue().size();
+			eldest.remove();
+			EVICTIONS.add(1);
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long bytes() {
+		return bytes;
+	}
+}
@@ -1,7 +1,12 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
 import java.util.Set;
 import java.util.Vector;
 
@@ -14,10 +19,21 @@ import libsvm.svm_problem;
 
 public class SVMClassifier implements IClassifier {
 
+	public enum Kernel {
+		RBF,
+		// histogram intersection on L1 normalized histograms, precomputed once per training
+		INTERSECTION
+	}
+
 	private static final boolean ESTIMATE_PARAMETERS = true;
 	private static final boolean PRINT_SVM_INFO = false;
+	// the most histograms the intersection kernel is trained on, its precomputed
+	// problem grows with their square (see IntersectionKernelMatrix)
+	private static final int MAX_KERNEL_VECTORS = 3000;
+	private static final long SEED = 4711;
 	
 	private final int featureCount;
+	private final Kernel kernel;
 	private String[] classNames;
 	
 	private svm_model model;
@@ -25,8 +41,18 @@ public class SVMClassifier implements IClassifier {
 	private double gamma;
 	private int maxFreq = 0;
 	
+	// the normalized support vectors and their coefficients, evaluated by
+	// decisionValue without going through libsvm
+	private double[][] supportVectors;
+	private double[] coefficients;
+	
 	public SVMClassifier(int features) {
+		this(features, Kernel.RBF);
+	}
+	
+	public SVMClassifier(int features, Kernel kernel) {
 		this.featureCount = features;
+		this.kernel = kernel;
 		svm.svm_set_print_string_function(new svm_print_interface() {
 			@Override
 			public void print(String toPrint) {
@@ -39,13 +65,161 @@ public class SVMClassifier implements IClassifier {
 	
 	@Override
 	public String classify(int[] histogram) {
-		svm_node[] node = normalizeNode(toSVMNode(histogram));
-		final double result = svm.svm_predict(model, node);
+		return classNames[classIndex(decisionValue(histogram))];
+	}
+	
+	@Override
+	public String[] getClassNames() {
+		return classNames;
+	}
+	
+	@Override
+	public void classify(final int[][] histograms, final int[] classIndices, final double[] scores) {
+		ParallelBatch.run(histograms.length, new ParallelBatch.Range() {
+			@Override
+			public void run(int from, int to) {
+				for(int i = from; i < to; i++) {
+					final double decision = decisionValue(histograms[i]);
+					classIndices[i] = classIndex(decision);
+					scores[2*i + model.label[0]] = decision;
+					scores[2*i + model.label[1]] = -decision;
+				}
+			}
+		});
+	}
+	
+	@Override
+	public void save(DataOutputStream out, long vocabularyId) throws IOException {
+		ModelIO.writeHeader(out, "SVMClassifier", vocabularyId);
+		out.writeInt(featureCount);
+		out.writeUTF(kernel.name());
+		ModelIO.writeStrings(out, classNames);
+		out.writeDouble(C);
+		out.writeDouble(gamma);
+		out.writeInt(maxFreq);
 		
-		if(result > 0.5) {
-			return classNames[1];
-		}else{
-			return classNames[0];
+		ModelIO.writeInts(out, model.label);
+		out.writeDouble(model.rho[0]);
+		ModelIO.writeDoubles(out, model.sv_coef[0]);
+		if(kernel == Kernel.INTERSECTION) {
+			for(double[] supportVector : supportVectors) {
+				ModelIO.writeDoubles(out, supportVector);
+			}
+		} else {
+			ModelIO.writeInts(out, model.nSV);
+			for(svm_node[] supportVector : model.SV) {
+				for(int j = 0; j < featureCount; j++) {
+					out.writeDouble(supportVector[j].value);
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void load(DataInputStream in, long vocabularyId) throws IOException {
+		ModelIO.readHeader(in, "SVMClassifier", vocabularyId);
+		if(in.readInt() != featureCount) throw new IOException("Model was trained for another number of features");
+		if(!in.readUTF().equals(kernel.name())) throw new IOException("Model was trained with another kernel");
+		
+		classNames = ModelIO.readStrings(in);
+		C = in.readDouble();
+		gamma = in.readDouble();
+		maxFreq = in.readInt();
+		
+		svm_model loaded = new svm_model();
+		loaded.param = getDefaultParameters();
+		loaded.param.C = C;
+		loaded.param.gamma = gamma;
+		loaded.nr_class = classNames.length;
+		loaded.label = ModelIO.readInts(in);
+		loaded.rho = new double[] { in.readDouble() };
+		loaded.sv_coef = new double[][] { ModelIO.readDoubles(in) };
+		loaded.l = loaded.sv_coef[0].length;
+		
+		if(kernel == Kernel.INTERSECTION) {
+			supportVectors = new double[loaded.l][];
+			for(int i = 0; i < loaded.l; i++) {
+				supportVectors[i] = ModelIO.readDoubles(in);
+			}
+			coefficients = loaded.sv_coef[0];
+		} else {
+			loaded.nSV = ModelIO.readInts(in);
+			loaded.SV = new svm_node[loaded.l][];
+			for(int i = 0; i < loaded.l; i++) {
+				loaded.SV[i] = new svm_node[featureCount];
+				for(int j = 0; j < featureCount; j++) {
+					loaded.SV[i][j] = new svm_node();
+					loaded.SV[i][j].index = j;
+					loaded.SV[i][j].value = in.readDouble();
+				}
+			}
+		}
+		model = loaded;
+		
+		if(kernel == Kernel.RBF) {
+			extractSupportVectors();
+		}
+	}
+
+	// the number of support vectors a histogram is compared with
+	public int getSupportVectorCount() {
+		return model.l;
+	}
+
+	/*
+	 * libsvm decides for model.label[0] on a positive decision value.
+	 */
+	private int classIndex(double decision) {
+		return decision > 0 ? model.label[0] : model.label[1];
+	}
+	
+	/*
+	 * Evaluates the decision function sum_i coef_i k(sv_i, x) - rho directly on the
+	 * dense support vectors. The histogram is normalized on the fly, so this does
+	 * not allocate.
+	 */
+	private double decisionValue(int[] histogram) {
+		double decision = -model.rho[0];
+		
+		if(kernel == Kernel.INTERSECTION) {
+			double sum = 0;
+			for(int j = 0; j < featureCount; j++) {
+				sum += histogram[j];
+			}
+			final double scale = sum == 0 ? 0 : 1 / sum;
+			
+			for(int i = 0; i < supportVectors.length; i++) {
+				final double[] supportVector = supportVectors[i];
+				double k = 0;
+				for(int j = 0; j < featureCount; j++) {
+					k += Math.min(supportVector[j], histogram[j] * scale);
+				}
+				decision += coefficients[i] * k;
+			}
+		} else {
+			final double scale = 1.0 / maxFreq;
+			
+			for(int i = 0; i < supportVectors.length; i++) {
+				final double[] supportVector = supportVectors[i];
+				double distance = 0;
+				for(int j = 0; j < featureCount; j++) {
+					final double diff = histogram[j] * scale - supportVector[j];
+					distance += diff * diff;
+				}
+				decision += coefficients[i] * Math.exp(-gamma * distance);
+			}
+		}
+		return decision;
+	}
+	
+	private void extractSupportVectors() {
+		supportVectors = new double[model.l][featureCount];
+		coefficients = new double[model.l];
+		for(int i = 0; i < model.l; i++) {
+			for(svm_node node : model.SV[i]) {
+				supportVectors[i][node.index] = node.value;
+			}
+			coefficients[i] = model.sv_coef[0][i];
 		}
 	}
 
@@ -58,6 +232,11 @@ public class SVMClassifier implements IClassifier {
 		List<Vector<int[]>> items = new ArrayList<>();
 		int itemCount = fillFeatureVecotrsToItemList(dataSet.entrySet(), items);
 		
+		if(kernel == Kernel.INTERSECTION) {
+			learnIntersection(itemCount, items);
+			return;
+		}
+		
 		double[] labels = new double[itemCount];
 		svm_node[][] vectors = new svm_node[itemCount][featureCount];
 
@@ -65,6 +244,76 @@ public class SVMClassifier implements IClassifier {
 		normalizeVectorSpace(vectors);
 		
 		trainSVM(itemCount, labels, vectors);
+		extractSupportVectors();
+	}
+
+	/*
+	 * The kernel matrix is computed once and shared by all cells and folds of the
+	 * grid search as well as by the final training. Beyond MAX_KERNEL_VECTORS
+	 * histograms a seeded random subset of each class is trained on, preserving
+	 * the class ratio.
+	 */
+	private void learnIntersection(int itemCount, List<Vector<int[]>> items) {
+		if(itemCount > MAX_KERNEL_VECTORS) {
+			Random random = new Random(SEED);
+			List<Vector<int[]>> sample = new ArrayList<>();
+			int sampleCount = 0;
+			for(Vector<int[]> itemsList : items) {
+				List<int[]> shuffled = new ArrayList<>(itemsList);
+				Collections.shuffle(shuffled, random);
+				int keep = Math.max(1, (int) ((long) shuffled.size() * MAX_KERNEL_VECTORS / itemCount));
+				sample.add(new Vector<int[]>(shuffled.subList(0, keep)));
+				sampleCount += keep;
+			}
+			items = sample;
+			itemCount = sampleCount;
+		}
+		
+		double[] labels = new double[itemCount];
+		double[][] histograms = new double[itemCount][];
+		
+		int currentCount = 0;
+		int classId = 0;
+		for(Vector<int[]> itemsList : items) {
+			fillWith(labels, classId, currentCount, itemsList.size());
+			
+			for(int[] item : itemsList) {
+				histograms[currentCount] = toL1Normalized(item);
+				currentCount++;
+			}
+			
+			classId++;
+		}
+		
+		double[][] kernelMatrix;
+		try {
+			kernelMatrix = IntersectionKernelMatrix.compute(histograms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Kernel computation interrupted", e);
+		}
+		
+		trainSVM(itemCount, labels, IntersectionKernelMatrix.toPrecomputedNodes(kernelMatrix));
+		
+		supportVectors = new double[model.l][];
+		coefficients = new double[model.l];
+		for(int i = 0; i < model.l; i++) {
+			supportVectors[i] = histograms[(int) model.SV[i][0].value - 1];
+			coefficients[i] = model.sv_coef[0][i];
+		}
+	}
+	
+	private double[] toL1Normalized(int[] histogram) {
+		double sum = 0;
+		for(int i = 0; i < featureCount; i++) {
+			sum += histogram[i];
+		}
+		
+		double[] normalized = new double[featureCount];
+		for(int i = 0; i < featureCount; i++) {
+			normalized[i] = sum == 0 ? 0 : histogram[i] / sum;
+		}
+		return normalized;
 	}
 
 	private void trainSVM(int itemCount, double[] labels, svm_node[][] vectors) {
@@ -120,6 +369,7 @@ public class SVMClassifier implements IClassifier {
 			
 			for(int[] item : itemsList) {
 				vectors[currentCount] = toSVMNode(item);
+				updateMaxFreq(item);
 				currentCount++;
 			}
 			
@@ -152,12 +402,20 @@ public class SVMClassifier implements IClassifier {
 			node[i] = new svm_node();
 			node[i].index = i;
 			node[i].value = features[i];
-			
+		}
+		return node;
+	}
+	
+	/*
+	 * The normalization is only fitted to the training vectors, so concurrent
+	 * predictions all see the same scale.
+	 */
+	private void updateMaxFreq(int[] features) {
+		for(int i = 0; i < featureCount; i++) {
 			if(features[i] > maxFreq) {
 				maxFreq = features[i];
 			}
 		}
-		return node;
 	}
 	
 	private void estimateParameters(svm_problem prob, svm_parameter param) {
@@ -174,7 +432,7 @@ public class SVMClassifier implements IClassifier {
 		svm_parameter param = new svm_parameter();
 
 		param.svm_type = svm_parameter.C_SVC;
-		param.kernel_type = svm_parameter.RBF;
+		param.kernel_type = kernel == Kernel.INTERSECTION ? svm_parameter.PRECOMPUTED : svm_parameter.RBF;
 		param.degree = 3;
 		param.gamma = 0;
 		param.coef0 = 0;
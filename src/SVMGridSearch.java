@@ -1,31 +1,46 @@
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import libsvm.svm;
+import libsvm.svm_model;
+import libsvm.svm_node;
 import libsvm.svm_parameter;
 import libsvm.svm_problem;
 
 /**
- * Implements an automated grid search for parameters of an RBF-Kernel.
- * 
- * This grid search is adapted from the svm-grid tool. It performes a brute-force
- * search over a fixed range of C and gamma values. The accuracy of the selected parameters
- * is measured using a n-fold cross validation.
- * 
- * To increase performance, only a subset of trainingvectors is used to perform the parameter
- * search. This leads to reasonable good results, but might be far away from the accuracy
- * of manual parameter search.
- * 
+ * Implements an automated grid search for parameters of an RBF-Kernel. For kernels
+ * that do not depend on gamma (linear, precomputed) only C is searched.
+ *
+ * This grid search is adapted from the svm-grid tool. It first evaluates a coarse
+ * grid over a fixed range of C and gamma values and then refines the grid around the
+ * best cell in a number of passes, halving the step size in each pass. The accuracy
+ * of the selected parameters is measured using a n-fold cross validation.
+ *
+ * To increase performance, only a seeded, stratified subset of trainingvectors is used
+ * to perform the parameter search. The folds are built once from this subset and are
+ * shared by all cells, so the accuracies of different cells are directly comparable.
+ * All (cell, fold) trainings are independent and run concurrently on a bounded pool.
+ *
  * @author Florian Luescher
  * @author Matthias Brun
  */
 public class SVMGridSearch {
 
 	private static final int MAX_VECTORS = 2000;
-	private static final int MAX_ITERATIONS = 200;
-	private static final double ACCURACY_TRHESHOLD = 0.90;
+	private static final long SEED = 4711;
 
 	private static final int FOLD = 5;
 
@@ -37,72 +52,284 @@ public class SVMGridSearch {
 	private static final int G_END = 3;
 	private static final int G_STEP = 2;
 
+	// number of refinement passes after the coarse grid, each halves the step size
+	private static final int REFINE_PASSES = 2;
+
+	private final int threads;
+
+	public SVMGridSearch() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public SVMGridSearch(int threads) {
+		this.threads = threads;
+	}
+
 	public double[] estimateParameters(svm_problem prob, svm_parameter param) {
 		/* double[0] = C, double[1] = gamma */
-		double[] result = new double[2];
-		int oldLength = prob.l;
-
-		List<Integer> cValues = generateValues(C_BEGIN, C_END, C_STEP);
-		List<Integer> gValues = generateValues(G_BEGIN, G_END, G_STEP);
-		
-		if (prob.l > MAX_VECTORS) {
-			prob.l = MAX_VECTORS;
-		}
-
-		double maxAccuracy = 0;
-		int iterations = 0;
-		for (int cValue : cValues) {
-			for (int gValue : gValues) {
-				iterations++;
-
-				param.C = Math.pow(2, cValue);
-				param.gamma = Math.pow(2, gValue);
-
-				double acc = calcAccuracy(prob, param);
-				if (acc > maxAccuracy) {
-					maxAccuracy = acc;
-					result[0] = param.C;
-					result[1] = param.gamma;
-				}
+		List<List<Integer>> sample = stratifiedSample(prob);
+		List<Fold> folds = createFolds(prob, sample);
+		boolean searchGamma = usesGamma(param);
 
-				if (maxAccuracy >= ACCURACY_TRHESHOLD || iterations >= MAX_ITERATIONS) {
-					System.out.println("Max acc: " + maxAccuracy);
-					System.out.println("Iterations: " + iterations);
-					
-					prob.l = oldLength;
-					return result;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			Map<Cell, Double> evaluated = new HashMap<>();
+
+			List<Cell> grid = new ArrayList<>();
+			for (int c = C_BEGIN; c <= C_END; c += C_STEP) {
+				if (searchGamma) {
+					for (int g = G_BEGIN; g <= G_END; g += G_STEP) {
+						grid.add(new Cell(c, g));
+					}
+				} else {
+					grid.add(new Cell(c, Math.log(param.gamma) / Math.log(2)));
 				}
 			}
+			Cell best = evaluate(grid, folds, param, pool, evaluated);
+
+			double cStep = C_STEP;
+			double gStep = G_STEP;
+			for (int pass = 0; pass < REFINE_PASSES; pass++) {
+				cStep /= 2;
+				gStep = searchGamma ? gStep / 2 : 0;
+				best = evaluate(neighbourhood(best, cStep, gStep), folds, param,
+						pool, evaluated);
+			}
+
+			System.out.println("Max acc: " + evaluated.get(best));
+			System.out.println("Evaluated cells: " + evaluated.size());
+
+			return new double[] { best.getC(), best.getGamma() };
+		} finally {
+			pool.shutdown();
 		}
+	}
 
-		prob.l = oldLength;
-		return result;
+	/*
+	 * Only these kernels depend on gamma, for all others the search is reduced
+	 * to C and keeps the given gamma.
+	 */
+	private boolean usesGamma(svm_parameter param) {
+		return param.kernel_type == svm_parameter.RBF
+				|| param.kernel_type == svm_parameter.POLY
+				|| param.kernel_type == svm_parameter.SIGMOID;
+	}
+
+	/*
+	 * The best cell comes first, so it is kept on ties with its neighbours.
+	 */
+	private List<Cell> neighbourhood(Cell center, double cStep, double gStep) {
+		List<Cell> cells = new ArrayList<>();
+		cells.add(center);
+		for (int i = -1; i <= 1; i++) {
+			for (int j = -1; j <= 1; j++) {
+				if ((i != 0 || j != 0) && (gStep != 0 || j == 0)) {
+					cells.add(new Cell(center.c + i * cStep, center.g + j * gStep));
+				}
+			}
+		}
+		return cells;
 	}
 
-	private List<Integer> generateValues(int start, int end, int step) {
-		List<Integer> results = new ArrayList<Integer>();
+	/**
+	 * Cross validates all cells that were not evaluated yet and returns the most
+	 * accurate cell of the given list. On ties the cell listed first wins.
+	 */
+	private Cell evaluate(List<Cell> cells, List<Fold> folds,
+			svm_parameter param, ExecutorService pool, Map<Cell, Double> evaluated) {
+		Map<Cell, List<Future<Integer>>> pending = new LinkedHashMap<>();
+		for (Cell cell : cells) {
+			if (evaluated.containsKey(cell) || pending.containsKey(cell)) {
+				continue;
+			}
+			List<Future<Integer>> results = new LinkedList<>();
+			for (Fold fold : folds) {
+				results.add(pool.submit(new FoldRunnable(fold, cellParameters(param, cell))));
+			}
+			pending.put(cell, results);
+		}
 
-		for (int i = start; i <= end; i += step) {
-			results.add(i);
+		int total = 0;
+		for (Fold fold : folds) {
+			total += fold.testLabels.length;
 		}
 
-		Collections.shuffle(results);
+		for (Entry<Cell, List<Future<Integer>>> entry : pending.entrySet()) {
+			int correct = 0;
+			for (Future<Integer> result : entry.getValue()) {
+				correct += await(result);
+			}
+			evaluated.put(entry.getKey(), (double) correct / total);
+		}
+
+		Cell best = null;
+		for (Cell cell : cells) {
+			if (best == null || evaluated.get(cell) > evaluated.get(best)) {
+				best = cell;
+			}
+		}
+		return best;
+	}
 
-		return results;
+	private int await(Future<Integer> result) {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Grid search interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Grid search failed", e.getCause());
+		}
 	}
 
-	private double calcAccuracy(svm_problem prob, svm_parameter param) {
-		double[] target = new double[prob.l];
-		svm.svm_cross_validation(prob, param, FOLD, target);
+	private svm_parameter cellParameters(svm_parameter param, Cell cell) {
+		svm_parameter cellParam = (svm_parameter) param.clone();
+		cellParam.C = cell.getC();
+		cellParam.gamma = cell.getGamma();
+		return cellParam;
+	}
 
-		int totalCorrect = 0;
+	/*
+	 * Groups the vectors by label and keeps a seeded random subset of at most
+	 * MAX_VECTORS, preserving the class ratio of the problem.
+	 */
+	private List<List<Integer>> stratifiedSample(svm_problem prob) {
+		Map<Double, List<Integer>> byLabel = new LinkedHashMap<>();
 		for (int i = 0; i < prob.l; i++) {
-			if (target[i] == prob.y[i]) {
-				++totalCorrect;
+			if (!byLabel.containsKey(prob.y[i])) {
+				byLabel.put(prob.y[i], new ArrayList<Integer>());
 			}
+			byLabel.get(prob.y[i]).add(i);
 		}
 
-		return (double) totalCorrect / prob.l;
+		Random random = new Random(SEED);
+		List<List<Integer>> sample = new ArrayList<>();
+		for (List<Integer> indices : byLabel.values()) {
+			Collections.shuffle(indices, random);
+			if (prob.l > MAX_VECTORS) {
+				int keep = Math.max(FOLD, (int) ((long) indices.size() * MAX_VECTORS / prob.l));
+				indices = indices.subList(0, Math.min(keep, indices.size()));
+			}
+			sample.add(indices);
+		}
+		return sample;
+	}
+
+	/*
+	 * Deals the vectors of each class round robin into the folds, so every fold
+	 * has the class ratio of the sample.
+	 */
+	private List<Fold> createFolds(svm_problem prob, List<List<Integer>> sample) {
+		List<List<Integer>> members = new ArrayList<>();
+		for (int f = 0; f < FOLD; f++) {
+			members.add(new ArrayList<Integer>());
+		}
+
+		int next = 0;
+		for (List<Integer> indices : sample) {
+			for (int index : indices) {
+				members.get(next++ % FOLD).add(index);
+			}
+		}
+
+		List<Fold> folds = new ArrayList<>();
+		for (int f = 0; f < FOLD; f++) {
+			List<Integer> train = new ArrayList<>();
+			for (int other = 0; other < FOLD; other++) {
+				if (other != f) {
+					train.addAll(members.get(other));
+				}
+			}
+			folds.add(new Fold(prob, train, members.get(f)));
+		}
+		return folds;
+	}
+
+	private static class FoldRunnable implements Callable<Integer> {
+
+		Fold fold;
+		svm_parameter param;
+
+		public FoldRunnable(Fold fold, svm_parameter param) {
+			this.fold = fold;
+			this.param = param;
+		}
+
+		@Override
+		public Integer call() {
+			svm_model model = svm.svm_train(fold.train, param);
+
+			int correct = 0;
+			for (int i = 0; i < fold.testVectors.length; i++) {
+				if (svm.svm_predict(model, fold.testVectors[i]) == fold.testLabels[i]) {
+					correct++;
+				}
+			}
+			return correct;
+		}
+	}
+
+	/*
+	 * A training problem and its held out vectors. The vectors are shared with
+	 * the original problem and are only read by libsvm.
+	 */
+	private static class Fold {
+		final svm_problem train;
+		final svm_node[][] testVectors;
+		final double[] testLabels;
+
+		Fold(svm_problem prob, List<Integer> train, List<Integer> test) {
+			this.train = new svm_problem();
+			this.train.l = train.size();
+			this.train.x = new svm_node[train.size()][];
+			this.train.y = new double[train.size()];
+			for (int i = 0; i < train.size(); i++) {
+				this.train.x[i] = prob.x[train.get(i)];
+				this.train.y[i] = prob.y[train.get(i)];
+			}
+
+			testVectors = new svm_node[test.size()][];
+			testLabels = new double[test.size()];
+			for (int i = 0; i < test.size(); i++) {
+				testVectors[i] = prob.x[test.get(i)];
+				testLabels[i] = prob.y[test.get(i)];
+			}
+		}
+	}
+
+	/*
+	 * A grid cell given by the log2 exponents of C and gamma.
+	 */
+	private static class Cell {
+		final double c;
+		final double g;
+
+		Cell(double c, double g) {
+			this.c = c;
+			this.g = g;
+		}
+
+		double getC() {
+			return Math.pow(2, c);
+		}
+
+		double getGamma() {
+			return Math.pow(2, g);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Cell)) {
+				return false;
+			}
+			Cell other = (Cell) obj;
+			return c == other.c && g == other.g;
+		}
+
+		@Override
+		public int hashCode() {
+			return Double.valueOf(c).hashCode() * 31 + Double.valueOf(g).hashCode();
+		}
 	}
 
 }
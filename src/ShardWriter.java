@@ -0,0 +1,130 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import mpi.cbg.fly.Feature;
+
+/**
+ * Writes descriptors round robin into shard files for ShardedKMeans, so the
+ * descriptor set is never held in memory as a whole. As a FeatureSink it takes
+ * the descriptors of each image while the images are read, and can keep a
+ * sample of them like DescriptorSampler as the initial centroids, so the
+ * centroids do not depend on the order in which the images are offered.
+ *
+ * A shard file holds the descriptor dimension followed by the float
+ * descriptors, its descriptor count follows from the file length.
+ */
+public class ShardWriter implements Closeable, FeatureSink {
+
+	private static final long SEED = 4711;
+
+	private final File directory;
+	private final File[] files;
+	private final DataOutputStream[] outs;
+	private int dimension = -1;
+	private int next;
+	// the first failure of offer, thrown by close
+	private IOException failure;
+	// the sample of the offered features, null if none is kept
+	private final DescriptorSampler seeds;
+
+	public ShardWriter(File directory, int shards) throws IOException {
+		this(directory, shards, 0);
+	}
+
+	/**
+	 * @param seeds
+	 *            the size of the sample of the offered features, 0 keeps none
+	 */
+	public ShardWriter(File directory, int shards, int seeds)
+			throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		this.directory = directory;
+		this.seeds = seeds > 0 ? new DescriptorSampler(Integer.MAX_VALUE,
+				seeds, SEED) : null;
+		files = new File[shards];
+		outs = new DataOutputStream[shards];
+		for (int i = 0; i < shards; i++) {
+			files[i] = new File(directory, "shard-" + i + ".bin");
+			outs[i] = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(files[i])));
+		}
+	}
+
+	public synchronized void add(float[] descriptor) throws IOException {
+		if (dimension < 0) {
+			dimension = descriptor.length;
+			for (DataOutputStream out : outs) {
+				out.writeInt(dimension);
+			}
+		} else if (descriptor.length != dimension) {
+			throw new IOException("Descriptor of dimension " + descriptor.length
+					+ " in shards of dimension " + dimension);
+		}
+
+		DataOutputStream out = outs[next];
+		for (float value : descriptor) {
+			out.writeFloat(value);
+		}
+		next = (next + 1) % outs.length;
+	}
+
+	/**
+	 * Writes the descriptors of an image. A failure is thrown by close, since
+	 * the reading threads cannot handle it.
+	 */
+	@Override
+	public synchronized void offer(String image, List<Feature> features) {
+		if (failure != null) {
+			return;
+		}
+		try {
+			for (Feature feature : features) {
+				add(feature.descriptor);
+			}
+		} catch (IOException e) {
+			failure = e;
+		}
+		if (seeds != null) {
+			seeds.offer(image, features);
+		}
+	}
+
+	/**
+	 * @return the sample of the offered features in key order, null if none is
+	 *         kept
+	 */
+	public Feature[] getSeeds() {
+		return seeds == null ? null : seeds.sample();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public File[] getFiles() {
+		return files;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		for (DataOutputStream out : outs) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,259 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import mpi.cbg.fly.Feature;
+
+/**
+ * Coordinator of a k-means clustering distributed over worker processes, for
+ * descriptor sets larger than the memory of one JVM.
+ *
+ * The descriptors are split into shard files (see ShardWriter), one per worker.
+ * Every iteration the coordinator sends the centroids to all workers over a
+ * socket, each worker answers with the counts and descriptor sums of its shard
+ * per centroid (see KMeansWorker), and the coordinator reduces them to the new
+ * centroids. Only the centroids and the partial sums cross process boundaries.
+ *
+ * Unlike doClusteringVisualWords this is Lloyd's k-means, the centroids are
+ * means and not descriptors of the training set.
+ */
+public class ShardedKMeans {
+
+	// how long the coordinator waits for a worker to connect
+	private static final int CONNECT_TIMEOUT = 60000;
+
+	private static final Metrics.Timer ITERATION = Metrics
+			.timer("clustering.iteration");
+
+	private ShardedKMeans() {
+	}
+
+	/**
+	 * Clusters the descriptors of the shards with one local worker JVM per
+	 * shard, started with the class path of this JVM.
+	 *
+	 * @param tolerance
+	 *            stop once no centroid moves farther than this
+	 */
+	public static List<VisualWord> cluster(File[] shards, int K,
+			int maxIterations, double tolerance) throws IOException {
+		return cluster(shards, K, null, maxIterations, tolerance, true);
+	}
+
+	/**
+	 * Clusters like cluster(shards, K, maxIterations, tolerance), starting
+	 * from the first K seeds instead of the first K descriptors of the shards.
+	 */
+	public static List<VisualWord> cluster(File[] shards, int K,
+			Feature[] seeds, int maxIterations, double tolerance)
+			throws IOException {
+		return cluster(shards, K, seeds, maxIterations, tolerance, true);
+	}
+
+	/**
+	 * Clusters the descriptors of the shards. Without local workers the
+	 * coordinator prints its port and waits for one worker per shard, started
+	 * with "java KMeansWorker host port" on machines that can read the shard
+	 * files.
+	 *
+	 * @param seeds
+	 *            the initial centroids, at least K descriptors, null starts
+	 *            from the first K descriptors of the shards
+	 */
+	public static List<VisualWord> cluster(File[] shards, int K,
+			Feature[] seeds, int maxIterations, double tolerance,
+			boolean localWorkers) throws IOException {
+		List<Process> processes = new ArrayList<Process>();
+		List<Socket> sockets = new ArrayList<Socket>();
+
+		try (ServerSocket server = new ServerSocket(0)) {
+			server.setSoTimeout(CONNECT_TIMEOUT);
+			if (localWorkers) {
+				for (int i = 0; i < shards.length; i++) {
+					processes.add(startWorker(server.getLocalPort()));
+				}
+			} else {
+				System.out.println("Waiting for " + shards.length
+						+ " workers on port " + server.getLocalPort());
+			}
+
+			DataInputStream[] ins = new DataInputStream[shards.length];
+			DataOutputStream[] outs = new DataOutputStream[shards.length];
+			long total = 0;
+			int dimension = 0;
+			for (int i = 0; i < shards.length; i++) {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				sockets.add(socket);
+				ins[i] = new DataInputStream(new BufferedInputStream(
+						socket.getInputStream()));
+				outs[i] = new DataOutputStream(new BufferedOutputStream(
+						socket.getOutputStream()));
+
+				outs[i].writeUTF(shards[i].getAbsolutePath());
+				outs[i].flush();
+				total += ins[i].readInt();
+				dimension = Math.max(dimension, ins[i].readInt());
+			}
+			if (total < K) {
+				throw new IllegalArgumentException("Cannot cluster " + total
+						+ " descriptors into " + K + " classes");
+			}
+			System.out.println("Start sharded clustering with: " + total
+					+ " pkt in " + shards.length + " shards to " + K
+					+ " classes");
+
+			float[] centroids = seeds == null ? initialCentroids(shards, K,
+					dimension) : initialCentroids(seeds, K, dimension);
+			for (int it = 1; it <= maxIterations; it++) {
+				long start = System.nanoTime();
+
+				// all workers compute in parallel, the answers are read afterwards
+				for (DataOutputStream out : outs) {
+					out.writeInt(K);
+					out.writeInt(dimension);
+					for (float value : centroids) {
+						out.writeFloat(value);
+					}
+					out.flush();
+				}
+
+				long[] counts = new long[K];
+				double[] sums = new double[K * dimension];
+				double distortion = 0;
+				for (DataInputStream in : ins) {
+					for (int c = 0; c < K; c++) {
+						counts[c] += in.readInt();
+					}
+					for (int j = 0; j < sums.length; j++) {
+						sums[j] += in.readDouble();
+					}
+					distortion += in.readDouble();
+				}
+
+				double shift = update(centroids, counts, sums, dimension);
+				ITERATION.stop(start);
+				System.out.println(it + ": distortion " + distortion
+						+ ", max centroid shift " + shift);
+				if (shift <= tolerance) {
+					break;
+				}
+			}
+
+			for (DataOutputStream out : outs) {
+				out.writeInt(0);
+				out.flush();
+			}
+			for (Process process : processes) {
+				process.waitFor();
+			}
+
+			List<VisualWord> words = new ArrayList<VisualWord>(K);
+			for (int c = 0; c < K; c++) {
+				Feature centroid = new Feature();
+				centroid.descriptor = new float[dimension];
+				System.arraycopy(centroids, c * dimension, centroid.descriptor, 0,
+						dimension);
+				words.add(new VisualWord(centroid, c));
+			}
+			return words;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the workers", e);
+		} finally {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+			for (Process process : processes) {
+				process.destroy();
+			}
+		}
+	}
+
+	private static Process startWorker(int port) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java";
+		return new ProcessBuilder(java, "-cp",
+				System.getProperty("java.class.path"), "KMeansWorker",
+				"localhost", Integer.toString(port)).inheritIO().start();
+	}
+
+	/*
+	 * The descriptors of the first K seeds.
+	 */
+	private static float[] initialCentroids(Feature[] seeds, int K,
+			int dimension) {
+		if (seeds.length < K) {
+			throw new IllegalArgumentException("Cannot seed " + K
+					+ " classes with " + seeds.length + " descriptors");
+		}
+		float[] centroids = new float[K * dimension];
+		for (int c = 0; c < K; c++) {
+			System.arraycopy(seeds[c].descriptor, 0, centroids, c * dimension,
+					dimension);
+		}
+		return centroids;
+	}
+
+	/*
+	 * The first K descriptors as written by the ShardWriter, which distributed
+	 * them round robin over the shards.
+	 */
+	private static float[] initialCentroids(File[] shards, int K, int dimension)
+			throws IOException {
+		float[] centroids = new float[K * dimension];
+		DataInputStream[] ins = new DataInputStream[shards.length];
+		try {
+			for (int i = 0; i < shards.length; i++) {
+				ins[i] = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(shards[i])));
+				if (shards[i].length() > 0) {
+					ins[i].readInt();
+				}
+			}
+			for (int j = 0; j < centroids.length; j++) {
+				centroids[j] = ins[(j / dimension) % shards.length].readFloat();
+			}
+		} finally {
+			for (DataInputStream in : ins) {
+				if (in != null) {
+					in.close();
+				}
+			}
+		}
+		return centroids;
+	}
+
+	/*
+	 * Moves the centroids to the means of their descriptors, empty clusters keep
+	 * their centroid.
+	 *
+	 * @return the largest distance a centroid moved
+	 */
+	private static double update(float[] centroids, long[] counts,
+			double[] sums, int dimension) {
+		double maxShift = 0;
+		for (int c = 0; c < counts.length; c++) {
+			if (counts[c] == 0) {
+				continue;
+			}
+			double shift = 0;
+			for (int j = c * dimension; j < (c + 1) * dimension; j++) {
+				float mean = (float) (sums[j] / counts[c]);
+				double diff = mean - centroids[j];
+				shift += diff * diff;
+				centroids[j] = mean;
+			}
+			maxShift = Math.max(maxShift, Math.sqrt(shift));
+		}
+		return maxShift;
+	}
+}
@@ -1,3 +1,6 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Vector;
@@ -6,7 +9,17 @@ import java.util.Vector;
 public class StatisticClassifier implements IClassifier {
 
 	private final int K;
-	private String[] classModel;
+	private String[] classNames;
+	//the class index of each VisualWord, indexes classNames
+	private int[] classIndexModel;
+	//the classes owning a VisualWord, in the order ties are decided
+	private int[] candidates;
+	private final ThreadLocal<int[]> scratch = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[0];
+		}
+	};
 	public StatisticClassifier(int k) {
 		this.K = k;
 	}
@@ -28,51 +41,107 @@ public class StatisticClassifier implements IClassifier {
 		
 		
 		//set a visualWord to the image class with the most counts 
-		this.classModel = new String[K];
+		this.classNames = model.keySet().toArray(new String[model.size()]);
+		this.classIndexModel = new int[K];
 		
 		for(int i=0;i<K;i++) {
-			String maxClass = "unknown";
 			int max = Integer.MIN_VALUE;
 			
-			for(String className : model.keySet())
+			for(int c=0;c<classNames.length;c++)
 			{
-				if(model.get(className)[i] > max) {
-					max = model.get(className)[i];
-					maxClass = className;
+				if(model.get(classNames[c])[i] > max) {
+					max = model.get(classNames[c])[i];
+					classIndexModel[i] = c;
 				}
 			}
-			
-			classModel[i]=maxClass;
 		}
+		this.candidates = candidates(classNames, classIndexModel);
+	}
+	
+	@Override
+	public void save(DataOutputStream out, long vocabularyId) throws IOException {
+		ModelIO.writeHeader(out, "StatisticClassifier", vocabularyId);
+		out.writeInt(K);
+		ModelIO.writeStrings(out, classNames);
+		ModelIO.writeInts(out, classIndexModel);
+	}
+	
+	@Override
+	public void load(DataInputStream in, long vocabularyId) throws IOException {
+		ModelIO.readHeader(in, "StatisticClassifier", vocabularyId);
+		if(in.readInt() != K) throw new IOException("Model was trained for another number of VisualWords");
 		
+		this.classNames = ModelIO.readStrings(in);
+		this.classIndexModel = ModelIO.readInts(in);
+		this.candidates = candidates(classNames, classIndexModel);
+	}
+	
+	/*
+	 * The classes owning a VisualWord in the key order of a HashMap of their
+	 * names, filled in VisualWord order. Only these classes can win and a tie
+	 * goes to the first, as in the HashMap scan classify was written with.
+	 */
+	private static int[] candidates(String[] classNames, int[] classIndexModel) {
+		Map<String,Integer> owners = new HashMap<String, Integer>();
+		for(int c : classIndexModel) owners.put(classNames[c], c);
+		
+		int[] candidates = new int[owners.size()];
+		int n = 0;
+		for(String className : owners.keySet()) candidates[n++] = owners.get(className);
+		return candidates;
+	}
+	
+	private int maxClass(double[] scores, int offset) {
+		int maxClass = candidates[0];
+		for(int c : candidates)
+			if(scores[offset+c] > scores[offset+maxClass]) maxClass = c;
+		return maxClass;
+	}
+	
+	@Override
+	public String[] getClassNames() {
+		return classNames;
+	}
+	
+	@Override
+	public void classify(final int[][] histograms, final int[] classIndices, final double[] scores) {
+		ParallelBatch.run(histograms.length, new ParallelBatch.Range() {
+			@Override
+			public void run(int from, int to) {
+				final int classCount = classNames.length;
+				for(int h=from;h<to;h++) {
+					//the scores are the VisualWord counts of each class
+					final int offset = h*classCount;
+					for(int c=0;c<classCount;c++) scores[offset+c]=0;
+					for(int i=0;i<K;i++) scores[offset+classIndexModel[i]]+=histograms[h][i];
+					
+					classIndices[h] = maxClass(scores, offset);
+				}
+			}
+		});
 	}
 	
 	@Override
 	public String classify(int[] histogram) {
-		//get the model from the global variable
-				
-		Map<String,Integer> classCounter = new HashMap<String,Integer>();
-				
-		//look up the class for each VisualWord in the model
-		for(int i=0;i<K;i++) {
-			String className = classModel[i];
-			if(!classCounter.containsKey(className)) classCounter.put(className,new Integer(0));
-			classCounter.put(className, classCounter.get(className)+histogram[i]);
+		if(candidates.length == 0) return "unknown";
+		
+		//count the VisualWords of each class in per thread counters
+		int[] classCounter = scratch.get();
+		if(classCounter.length < classNames.length) {
+			classCounter = new int[classNames.length];
+			scratch.set(classCounter);
 		}
-			
-		String maxClass = "unknown";
-		int max = Integer.MIN_VALUE;
-				
+		for(int c=0;c<classNames.length;c++) classCounter[c]=0;
+		
+		//look up the class for each VisualWord in the model
+		for(int i=0;i<K;i++) classCounter[classIndexModel[i]]+=histogram[i];
+		
 		//return the image class with the most VisualWords
-		for(String className : classCounter.keySet())
-		{
-			if(classCounter.get(className) > max) {
-				max = classCounter.get(className);
-				maxClass = className;
-			}
-		}
-				
-		return maxClass;
+		int maxClass = candidates[0];
+		for(int c : candidates)
+			if(classCounter[c] > classCounter[maxClass]) maxClass = c;
+		
+		return classNames[maxClass];
 	}
 
 
@@ -0,0 +1,123 @@
+import java.util.List;
+
+import mpi.cbg.fly.Feature;
+
+/**
+ * Encodes the SIFT features of an image as one compact global descriptor (VLAD,
+ * "vector of locally aggregated descriptors" after Jegou et al.).
+ *
+ * Each feature is assigned to its nearest visual word of a small vocabulary and
+ * the residuals descriptor - centroid are summed per word. The K * 128 sums are
+ * power normalized (signed square root) and L2 normalized, reduced with a PCA
+ * fitted on training images and L2 normalized again, so the similarity of two
+ * images is the dot product of their codes.
+ */
+public class VladEncoder {
+
+	private final float[][] centroids;
+	private final int descriptorLength;
+	private PCA pca;
+
+	public VladEncoder(List<VisualWord> words) {
+		centroids = new float[words.size()][];
+		for (VisualWord word : words) {
+			centroids[word.classID] = word.centroied.descriptor;
+		}
+		descriptorLength = centroids[0].length;
+	}
+
+	/**
+	 * @return the length of the unreduced VLAD vectors
+	 */
+	public int vladDimension() {
+		return centroids.length * descriptorLength;
+	}
+
+	/**
+	 * @return the length of the codes returned by encode
+	 */
+	public int dimension() {
+		return pca == null ? vladDimension() : pca.outputDimension();
+	}
+
+	public PCA getPCA() {
+		return pca;
+	}
+
+	/**
+	 * Fits the PCA reduction to dimension on the features of training images.
+	 */
+	public void fitPCA(List<? extends List<Feature>> images, int dimension) {
+		float[][] vlads = new float[images.size()][];
+		for (int i = 0; i < vlads.length; i++) {
+			vlads[i] = aggregate(images.get(i));
+		}
+		pca = PCA.fit(vlads, dimension);
+	}
+
+	/**
+	 * @return the normalized, unreduced VLAD vector of the features
+	 */
+	public float[] aggregate(List<Feature> features) {
+		final float[] vlad = new float[vladDimension()];
+		for (Feature feature : features) {
+			final float[] descriptor = feature.descriptor;
+			final int word = nearest(descriptor);
+			final float[] centroid = centroids[word];
+			final int offset = word * descriptorLength;
+			for (int j = 0; j < descriptorLength; j++) {
+				vlad[offset + j] += descriptor[j] - centroid[j];
+			}
+		}
+
+		for (int j = 0; j < vlad.length; j++) {
+			vlad[j] = (float) Math.copySign(Math.sqrt(Math.abs(vlad[j])), vlad[j]);
+		}
+		normalize(vlad);
+		return vlad;
+	}
+
+	/**
+	 * @return the code of the features, reduced if a PCA has been fitted
+	 */
+	public float[] encode(List<Feature> features) {
+		float[] vlad = aggregate(features);
+		if (pca == null) {
+			return vlad;
+		}
+		float[] code = pca.project(vlad);
+		normalize(code);
+		return code;
+	}
+
+	private int nearest(float[] descriptor) {
+		int nearest = 0;
+		float minDistance = Float.MAX_VALUE;
+		for (int word = 0; word < centroids.length; word++) {
+			final float[] centroid = centroids[word];
+			float distance = 0;
+			for (int j = 0; j < descriptorLength && distance < minDistance; j++) {
+				final float diff = descriptor[j] - centroid[j];
+				distance += diff * diff;
+			}
+			if (distance < minDistance) {
+				minDistance = distance;
+				nearest = word;
+			}
+		}
+		return nearest;
+	}
+
+	static void normalize(float[] v) {
+		double sum = 0;
+		for (float value : v) {
+			sum += value * value;
+		}
+		if (sum > 0) {
+			final float scale = (float) (1 / Math.sqrt(sum));
+			for (int j = 0; j < v.length; j++) {
+				v[j] *= scale;
+			}
+		}
+	}
+}
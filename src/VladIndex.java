@@ -0,0 +1,116 @@
+import java.util.Arrays;
+
+/**
+ * Brute force similarity search over global image codes, e.g. VLAD codes.
+ *
+ * The codes are stored row by row in one contiguous float matrix, a query is a
+ * linear scan of dot products over it. The dot product keeps four independent
+ * partial sums, so the scan is not serialized on a single accumulator.
+ */
+public class VladIndex {
+
+	private final int dimension;
+	private float[] vectors;
+	private String[] labels;
+	private int size;
+
+	public VladIndex(int dimension) {
+		this.dimension = dimension;
+		this.vectors = new float[16 * dimension];
+		this.labels = new String[16];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public String getLabel(int index) {
+		return labels[index];
+	}
+
+	/**
+	 * Adds a code with a label, e.g. the class of its image.
+	 *
+	 * @return the index of the code
+	 */
+	public int add(float[] code, String label) {
+		if (size == labels.length) {
+			vectors = Arrays.copyOf(vectors, 2 * vectors.length);
+			labels = Arrays.copyOf(labels, 2 * labels.length);
+		}
+		System.arraycopy(code, 0, vectors, size * dimension, dimension);
+		labels[size] = label;
+		return size++;
+	}
+
+	/**
+	 * Finds the codes with the largest dot product with the query, best first.
+	 *
+	 * @return the number of hits written to indices and scores, at most their
+	 *         length
+	 */
+	public int search(float[] query, int[] indices, float[] scores) {
+		final int k = Math.min(indices.length, size);
+		if (k == 0) {
+			return 0;
+		}
+		int found = 0;
+		for (int i = 0; i < size; i++) {
+			final float score = dot(query, i * dimension);
+			if (found == k && score <= scores[k - 1]) {
+				continue;
+			}
+
+			// insert into the sorted hits, dropping the last one if full
+			int position = found < k ? found++ : k - 1;
+			while (position > 0 && scores[position - 1] < score) {
+				scores[position] = scores[position - 1];
+				indices[position] = indices[position - 1];
+				position--;
+			}
+			scores[position] = score;
+			indices[position] = i;
+		}
+		return found;
+	}
+
+	/**
+	 * @return the most frequent label among the k nearest codes
+	 */
+	public String classify(float[] query, int k) {
+		int[] indices = new int[k];
+		float[] scores = new float[k];
+		int found = search(query, indices, scores);
+
+		String best = null;
+		int bestVotes = 0;
+		for (int i = 0; i < found; i++) {
+			int votes = 0;
+			for (int j = 0; j < found; j++) {
+				if (labels[indices[j]].equals(labels[indices[i]])) {
+					votes++;
+				}
+			}
+			if (votes > bestVotes) {
+				bestVotes = votes;
+				best = labels[indices[i]];
+			}
+		}
+		return best;
+	}
+
+	private float dot(float[] query, int offset) {
+		float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int j = 0;
+		for (; j + 3 < dimension; j += 4) {
+			s0 += query[j] * vectors[offset + j];
+			s1 += query[j + 1] * vectors[offset + j + 1];
+			s2 += query[j + 2] * vectors[offset + j + 2];
+			s3 += query[j + 3] * vectors[offset + j + 3];
+		}
+		for (; j < dimension; j++) {
+			s0 += query[j] * vectors[offset + j];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+}